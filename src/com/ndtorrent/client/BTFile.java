@@ -4,11 +4,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.SortedMap;
 
 public final class BTFile implements Comparable<Long> {
 	private RandomAccessFile file;
+	private File path;
+	private boolean existed; // with data, before createFileAndPath
 	private String name;
 	private long length;
 	private long offset;
@@ -81,6 +85,8 @@ public final class BTFile implements Comparable<Long> {
 		String parent = new File(name).getParent();
 		new File(parent_path + "./" + (parent != null ? parent : "")).mkdirs();
 		File f = new File(parent_path + "./" + name);
+		path = f;
+		existed = f.isFile() && f.length() > 0;
 		f.setReadable(true, true);
 		f.setWritable(true, true);
 		file = new RandomAccessFile(f, "rw");
@@ -89,6 +95,21 @@ public final class BTFile implements Comparable<Long> {
 		}
 	}
 
+	public boolean existed() {
+		// True if the file had data before it was opened.
+		return existed;
+	}
+
+	public long lastModified() {
+		// Returns 0 if the file hasn't been opened or doesn't exist.
+		return path == null ? 0 : path.lastModified();
+	}
+
+	public FileChannel getChannel() {
+		// Valid after createFileAndPath.
+		return file.getChannel();
+	}
+
 	public void close() {
 		try {
 			file.close();
@@ -119,6 +140,17 @@ public final class BTFile implements Comparable<Long> {
 		return file.getChannel().read(dst, file_position);
 	}
 
+	public long transferTo(long file_position, long count,
+			WritableByteChannel target) throws IOException {
+		// Transfers as many bytes as possible, up to count, from the given
+		// file position to the target, without copying them to user space
+		// if the OS supports it.
+		if (file_position >= length)
+			return -1;
+		count = Math.min(count, length - file_position);
+		return file.getChannel().transferTo(file_position, count, target);
+	}
+
 	@Override
 	public int compareTo(Long other_offset) {
 		return Long.signum(offset - other_offset.longValue());
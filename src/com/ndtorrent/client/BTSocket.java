@@ -1,6 +1,7 @@
 package com.ndtorrent.client;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
@@ -13,6 +14,17 @@ public final class BTSocket {
 	public static final int MAX_HANDSHAKE_SECONDS = 25;
 	public static final int TCP_SEND_BUFFER_SIZE = 4 * 1024;
 
+	// Queued messages are written together with a gathering write. The
+	// batch is limited, so that messages of higher priority that are queued
+	// later don't wait behind many pieces.
+	static final int MAX_OUTPUT_MESSAGES = 32;
+	static final int MAX_OUTPUT_BATCH = 16 * 1024;
+
+	// Input is read into a ring as much as is available, and the complete
+	// frames are sliced out of it, so small messages don't cost a read
+	// each. A frame that doesn't fit is read directly into its buffer.
+	static final int INPUT_RING_SIZE = 16 * 1024;
+
 	private SocketChannel channel;
 
 	private boolean is_closed;
@@ -27,23 +39,57 @@ public final class BTSocket {
 
 	private boolean is_input_error; // input stream has closed or MAX_DATA_SIZE
 	private ByteBuffer input_data;
-	private ByteBuffer input_prefix = ByteBuffer.allocate(4);
+	private ByteBuffer input_buffer; // pooled buffer that backs input_data
+	private ByteBuffer input_header = ByteBuffer.allocate(1 + 2 * 4);
+	private boolean is_input_in_place; // PIECE payload is read into a Piece
+	// Received bytes from position to limit; compacted before each read,
+	// so a frame that straddles the end is moved to the front.
+	private ByteBuffer input_ring = ByteBuffer.allocate(INPUT_RING_SIZE);
 
 	private boolean is_output_error;
-	private ByteBuffer output_data;
-	private ByteBuffer output_prefix = ByteBuffer.allocate(4);
-
-	private long input_total;
-	private long output_total;
-
-	private RollingTotal input_rate = new RollingTotal(5);
-	private RollingTotal output_rate = new RollingTotal(5);
-	// ? use ByteBuffer limit to control the rate
+	// The length prefix and the data of each message, in order.
+	private ByteBuffer[] output_buffers = new ByteBuffer[2 * MAX_OUTPUT_MESSAGES];
+	private ByteBuffer[] output_prefixes = new ByteBuffer[MAX_OUTPUT_MESSAGES];
+	private int output_first; // the first buffer that has remaining bytes
+	private int output_count;
+	private int output_batch; // bytes added to the batch
+	private Message output_block; // PIECE whose payload is transferred
+	private int output_block_sent;
+
+	// The I/O, the counters and close() are confined to the reactor the
+	// socket is registered with, which rolls the rates as well. Totals
+	// and rates are published through volatile fields, so that other
+	// threads, i.e. the status of the torrent, can read them.
+	private volatile long input_total;
+	private volatile long output_total;
+
+	private ExponentialRate input_rate = new ExponentialRate(5);
+	private ExponentialRate output_rate = new ExponentialRate(5);
+	private volatile double input_per_sec;
+	private volatile double output_per_sec;
+
+	// The rate is controlled by capping the ByteBuffer limits to the bytes
+	// granted by the limiters. A socket that gets no bytes is throttled
+	// until the limiters refill. The flags are read by other threads when
+	// they change the interest ops of the channel.
+	private RateLimiter input_limiter;
+	private RateLimiter output_limiter;
+	private volatile boolean is_input_throttled;
+	private volatile boolean is_output_throttled;
+
+	// Shared accounting of the torrent, and through it, of the client.
+	private BandwidthMeter input_meter;
+	private BandwidthMeter output_meter;
 
 	private long blocks_input_total;
 
+	private BufferPool pool = BufferPool.getShared();
+	private BlockDestination destination;
+	private BlockSource source;
+
 	public BTSocket(SocketChannel channel) {
 		this.channel = channel;
+		input_ring.flip();
 
 		try {
 			channel.configureBlocking(false);
@@ -53,6 +99,10 @@ public final class BTSocket {
 			e.printStackTrace();
 		}
 
+		for (int i = 0; i < MAX_OUTPUT_MESSAGES; i++) {
+			output_prefixes[i] = ByteBuffer.allocate(4);
+		}
+
 		long now = System.nanoTime();
 		created_at = now;
 		joined_at = now;
@@ -93,6 +143,10 @@ public final class BTSocket {
 				&& now - created_at > MAX_HANDSHAKE_SECONDS * 1e9;
 	}
 
+	public long handshakeExpiresAt() {
+		return created_at + MAX_HANDSHAKE_SECONDS * 1000000000L;
+	}
+
 	public void processHandshakeMessages() {
 		processInputHandshake();
 		processOutputHandshake();
@@ -131,68 +185,323 @@ public final class BTSocket {
 		output_handshake.getData().rewind();
 	}
 
+	public void setBlockDestination(BlockDestination destination) {
+		// When set, PIECE payloads are read directly into the buffers
+		// provided by the destination, if possible.
+		this.destination = destination;
+	}
+
+	public void setBlockSource(BlockSource source) {
+		// Required to send PIECE messages with a detached payload.
+		this.source = source;
+	}
+
+	public void setRateLimiters(RateLimiter input, RateLimiter output) {
+		// Either can be null. Must be set once, before any I/O.
+		input_limiter = input;
+		output_limiter = output;
+		if (input != null)
+			input.addUser();
+		if (output != null)
+			output.addUser();
+	}
+
+	public void setBandwidthMeters(BandwidthMeter input, BandwidthMeter output) {
+		// Either can be null.
+		input_meter = input;
+		output_meter = output;
+	}
+
+	public boolean isInputThrottled() {
+		return is_input_throttled;
+	}
+
+	public boolean isOutputThrottled() {
+		return is_output_throttled;
+	}
+
+	public long millisUntilUnthrottled() {
+		long millis = 0;
+		if (is_input_throttled)
+			millis = input_limiter.millisUntilTokens();
+		if (is_output_throttled)
+			millis = Math.max(millis, output_limiter.millisUntilTokens());
+		return millis;
+	}
+
 	public void processInput() {
-		if (is_input_error)
+		// Makes the next message available, if it has been received.
+		// Nothing is sliced after close, since the block of a PIECE could
+		// be reserved again.
+		if (is_closed || is_input_error || hasInputMessage())
 			return;
 		try {
-			// When a ByteBuffer is full no bytes are read.
-			is_input_error = readInput(input_prefix) < 0;
-			if (!input_prefix.hasRemaining()) {
-				if (input_data == null) {
-					int length = input_prefix.getInt(0);
-					if (length < 0 || length > MAX_DATA_SIZE) {
-						is_input_error = true;
-						return;
-					}
-					input_data = ByteBuffer.allocate(length);
-				}
+			if (input_data != null) {
+				// When a ByteBuffer is full no bytes are read.
 				is_input_error = readInput(input_data) < 0;
+				return;
 			}
+			if (sliceInput())
+				return;
+			is_input_error = readRing() < 0;
+			sliceInput();
 		} catch (IOException e) {
 			is_input_error = true;
 			// Can a network outage raise an exception?
 		}
 	}
 
+	private boolean sliceInput() {
+		// Takes the next frame out of the ring. Returns false if more
+		// bytes have to be received first.
+		if (input_ring.remaining() < 4)
+			return false;
+		int start = input_ring.position();
+		int length = input_ring.getInt(start);
+		if (length < 0 || length > MAX_DATA_SIZE) {
+			is_input_error = true;
+			return true;
+		}
+		int received = input_ring.remaining() - 4;
+		if (received == 0 && length > 0)
+			return false;
+		if (destination != null && length > input_header.capacity()
+				&& input_ring.get(start + 4) == Message.PIECE) {
+			// The header is needed to find out where the payload of a
+			// PIECE can be read into.
+			if (received < input_header.capacity())
+				return false;
+			for (int i = 0; i < input_header.capacity(); i++) {
+				input_header.put(i, input_ring.get(start + 4 + i));
+			}
+			input_header.position(input_header.capacity());
+			input_data = reserveInputBlock(length);
+			is_input_in_place = input_data != null;
+			if (is_input_in_place) {
+				skipRing(4 + input_header.capacity());
+				blocks_input_total += input_header.capacity();
+				moveRing(input_data);
+				return true;
+			}
+			input_header.clear();
+		}
+		if (received < length && 4 + length <= input_ring.capacity())
+			return false;
+		// Either the whole frame is in the ring, or the frame is too long
+		// for it; the rest is read directly.
+		skipRing(4);
+		input_buffer = pool.acquire(length);
+		input_data = input_buffer.slice();
+		moveRing(input_data);
+		return true;
+	}
+
+	private void skipRing(int n) {
+		input_ring.position(input_ring.position() + n);
+	}
+
+	private void moveRing(ByteBuffer dst) {
+		// Copies what has been received of the frame.
+		int n = Math.min(dst.remaining(), input_ring.remaining());
+		int limit = input_ring.limit();
+		input_ring.limit(input_ring.position() + n);
+		dst.put(input_ring);
+		input_ring.limit(limit);
+		if (inputID() == Message.PIECE)
+			blocks_input_total += n;
+	}
+
+	private int readRing() throws IOException {
+		input_ring.compact();
+		int n;
+		try {
+			n = readLimited(input_ring);
+		} finally {
+			input_ring.flip();
+		}
+		if (n > 0)
+			countInput(n);
+		return n;
+	}
+
+	private ByteBuffer reserveInputBlock(int length) {
+		if (input_header.get(0) != Message.PIECE)
+			return null;
+		int index = input_header.getInt(1);
+		int offset = input_header.getInt(5);
+		return destination.reserveBlock(index, offset, length
+				- input_header.capacity());
+	}
+
+	private byte inputID() {
+		// Returns the ID of the message being read, or -1 if unknown.
+		if (input_header.position() > 0)
+			return input_header.get(0);
+		if (input_data != null && input_data.position() > 0)
+			return input_data.get(0);
+		return -1;
+	}
+
+	private int readLimited(ByteBuffer dst) throws IOException {
+		is_input_throttled = false;
+		if (input_limiter == null)
+			return channel.read(dst);
+		int granted = input_limiter.acquire(dst.remaining());
+		if (granted == 0) {
+			is_input_throttled = dst.hasRemaining();
+			return 0;
+		}
+		int limit = dst.limit();
+		dst.limit(dst.position() + granted);
+		int n = 0;
+		try {
+			n = channel.read(dst);
+		} finally {
+			dst.limit(limit);
+			input_limiter.release(granted - Math.max(n, 0));
+		}
+		return n;
+	}
+
 	private int readInput(ByteBuffer dst) throws IOException {
-		int n = channel.read(dst);
+		int n = readLimited(dst);
 		if (n > 0) {
-			input_total += n;
-			input_rate.add(n);
-			if (input_data != null && input_data.position() > 0)
-				if (input_data.get(0) == Message.PIECE)
-					blocks_input_total += n;
+			countInput(n);
+			if (inputID() == Message.PIECE)
+				blocks_input_total += n;
 		}
 		return n;
 	}
 
+	private void countInput(long n) {
+		input_total += n;
+		input_rate.add(n);
+		if (input_meter != null)
+			input_meter.add(n);
+	}
+
+	private void countOutput(long n) {
+		output_total += n;
+		output_rate.add(n);
+		if (output_meter != null)
+			output_meter.add(n);
+	}
+
 	public void processOutput() {
 		if (!hasOutputMessage() || is_output_error)
 			return;
 		try {
 			// When the Socket buffer is full no bytes are written.
-			writeOutput(output_prefix);
-			if (!output_prefix.hasRemaining()) {
-				writeOutput(output_data);
-				if (!output_data.hasRemaining())
-					output_data = null;
+			if (output_first < output_count) {
+				writeOutput();
+				if (output_first < output_count)
+					return;
 			}
+			// The payload of a detached block follows its header, which
+			// is the last one of the batch.
+			if (output_block != null)
+				transferOutputBlock();
+			if (output_block == null)
+				clearOutput();
 		} catch (IOException e) {
 			is_output_error = true;
 		}
 	}
 
-	private int writeOutput(ByteBuffer src) throws IOException {
-		int n = channel.write(src);
+	private void clearOutput() {
+		for (int i = 0; i < output_count; i++) {
+			output_buffers[i] = null;
+		}
+		output_first = 0;
+		output_count = 0;
+		output_batch = 0;
+		is_output_throttled = false;
+	}
+
+	private void transferOutputBlock() throws IOException {
+		// The header has been written, the payload follows.
+		int index = output_block.getPieceIndex();
+		int offset = output_block.getBlockBegin() + output_block_sent;
+		int length = output_block.getBlockLength() - output_block_sent;
+		int granted = acquireOutput(length);
+		if (granted == 0)
+			return;
+		long n = 0;
+		try {
+			n = source.transferBlock(index, offset, granted, channel);
+		} finally {
+			releaseOutput(granted - (int) Math.max(n, 0));
+		}
+		if (n < 0) {
+			is_output_error = true;
+			return;
+		}
 		if (n > 0) {
-			output_total += n;
-			output_rate.add(n);
+			countOutput(n);
+			output_block_sent += n;
+		}
+		if (output_block_sent == output_block.getBlockLength())
+			output_block = null;
+	}
+
+	private int acquireOutput(long wanted) {
+		is_output_throttled = false;
+		if (output_limiter == null)
+			return (int) Math.min(wanted, Integer.MAX_VALUE);
+		int granted = output_limiter.acquire((int) Math.min(wanted,
+				Integer.MAX_VALUE));
+		is_output_throttled = granted == 0 && wanted > 0;
+		return granted;
+	}
+
+	private void releaseOutput(int unused) {
+		if (output_limiter != null)
+			output_limiter.release(unused);
+	}
+
+	private long writeOutput() throws IOException {
+		long wanted = 0;
+		for (int i = output_first; i < output_count; i++) {
+			wanted += output_buffers[i].remaining();
+		}
+		int granted = acquireOutput(wanted);
+		if (granted == 0)
+			return 0;
+
+		// The last buffer that is written is capped to the granted bytes.
+		int end = output_first;
+		int capped_limit = -1;
+		long left = granted;
+		while (end < output_count) {
+			ByteBuffer buffer = output_buffers[end++];
+			if (buffer.remaining() >= left) {
+				capped_limit = buffer.limit();
+				buffer.limit(buffer.position() + (int) left);
+				break;
+			}
+			left -= buffer.remaining();
+		}
+		long n = 0;
+		try {
+			n = channel.write(output_buffers, output_first, end - output_first);
+		} finally {
+			if (capped_limit >= 0)
+				output_buffers[end - 1].limit(capped_limit);
+			releaseOutput(granted - (int) Math.max(n, 0));
+		}
+		if (n > 0)
+			countOutput(n);
+		while (output_first < output_count
+				&& !output_buffers[output_first].hasRemaining()) {
+			output_first++;
 		}
 		return n;
 	}
 
 	public boolean hasPartialInputMesssage() {
-		return input_data != null && input_data.hasRemaining();
+		if (input_data == null)
+			return input_ring.hasRemaining();
+		return input_data.hasRemaining();
 	}
 
 	public boolean hasInputMessage() {
@@ -203,26 +512,65 @@ public final class BTSocket {
 		if (!hasInputMessage())
 			return null;
 
-		Message m = Message.wrap(input_data);
-		input_prefix.rewind();
-		input_data.rewind();
+		Message m;
+		if (is_input_in_place) {
+			int index = input_header.getInt(1);
+			int offset = input_header.getInt(5);
+			m = Message.newBlockHeader(index, offset, input_data.capacity());
+		} else {
+			// The message owns the pooled buffer until it gets released.
+			m = Message.wrap(input_data, pool, input_buffer);
+			input_data.rewind();
+		}
+		input_header.clear();
 		input_data = null;
+		input_buffer = null;
+		is_input_in_place = false;
 		last_input_at = System.nanoTime();
 		return m;
 	}
 
+	public void discardInputMessage(Message m) {
+		// Releases a message that was taken but won't be processed. The
+		// region reserved for a block that was read in place is released
+		// too, otherwise no other socket could complete it.
+		if (m.isPiece() && m.hasDetachedPayload() && destination != null)
+			destination.abortBlock(m.getPieceIndex(), m.getBlockBegin(),
+					m.getBlockLength());
+		m.release();
+	}
+
 	public boolean hasOutputMessage() {
-		return output_data != null;
+		return output_count > 0;
 	}
 
-	public boolean setOutputMessage(Message m) {
-		if (hasOutputMessage() || m == null || is_output_error)
+	public boolean canAddOutputMessage() {
+		// A detached block must be the last message of the batch.
+		return !is_output_error && output_block == null
+				&& output_count < output_buffers.length
+				&& output_batch < MAX_OUTPUT_BATCH;
+	}
+
+	public boolean addOutputMessage(Message m) {
+		// The message is sent after those already added.
+		if (!canAddOutputMessage() || m == null)
 			return false;
 
-		output_prefix.putInt(0, m.getLength());
-		output_prefix.rewind();
-		output_data = m.getData();
-		output_data.rewind();
+		if (m.hasDetachedPayload()) {
+			if (source == null)
+				return false;
+			output_block = m;
+			output_block_sent = 0;
+		}
+
+		ByteBuffer prefix = output_prefixes[output_count / 2];
+		prefix.putInt(0, m.getLength());
+		prefix.rewind();
+		ByteBuffer data = m.getData();
+		data.rewind();
+		output_buffers[output_count++] = prefix;
+		output_buffers[output_count++] = data;
+		output_batch += 4 + m.getLength();
 		last_output_at = System.nanoTime();
 		return true;
 	}
@@ -241,6 +589,8 @@ public final class BTSocket {
 		return output_total;
 	}
 
+	// Called by the reactor of the socket, as are rollTotals and
+	// clearBlocksInputTotal.
 	public void clearInputTotal() {
 		input_total = 0;
 	}
@@ -252,14 +602,16 @@ public final class BTSocket {
 	public void rollTotals() {
 		input_rate.roll();
 		output_rate.roll();
+		input_per_sec = input_rate.average();
+		output_per_sec = output_rate.average();
 	}
 
 	public double inputPerSec() {
-		return input_rate.average();
+		return input_per_sec;
 	}
 
 	public double outputPerSec() {
-		return output_rate.average();
+		return output_per_sec;
 	}
 
 	public long blocksInputTotal() {
@@ -294,6 +646,10 @@ public final class BTSocket {
 		return channel.socket().getInetAddress().getHostAddress();
 	}
 
+	public InetAddress getRemoteAddress() {
+		return channel.socket().getInetAddress();
+	}
+
 	public int getRemotePort() {
 		return channel.socket().getPort();
 	}
@@ -321,12 +677,32 @@ public final class BTSocket {
 
 	public void close() {
 		// When a connection gets closed, buffered data may not have been sent.
+		// Once the socket is registered, it must be closed by its reactor,
+		// since a block may be in the middle of being read in place.
+		if (!is_closed) {
+			if (input_limiter != null)
+				input_limiter.removeUser();
+			if (output_limiter != null)
+				output_limiter.removeUser();
+		}
 		is_closed = true;
 		try {
 			channel.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		abortInputBlock();
+	}
+
+	private void abortInputBlock() {
+		// A payload that is read in place and won't be completed must
+		// release its reservation.
+		if (!is_input_in_place || !input_data.hasRemaining())
+			return;
+		int index = input_header.getInt(1);
+		int offset = input_header.getInt(5);
+		destination.abortBlock(index, offset, input_data.capacity());
+		is_input_in_place = false;
 	}
 
 	public boolean isError() {
@@ -0,0 +1,125 @@
+package com.ndtorrent.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+public final class BandwidthMeter {
+	// Counts the bytes of the sockets of a torrent, or of the whole client,
+	// from any thread and without locks. The count is striped by thread, so
+	// that reactors don't contend on a single cache line, and it's summed
+	// when sampled.
+	// For the rate, the total at the beginning of each of the last seconds
+	// is kept. Whoever adds or samples first in a second records it, so
+	// there's no roll task and meters can be sampled from any thread.
+	// The marks are published as an immutable snapshot, so a thread that
+	// loses the race to record a second uses the winner's marks, never a
+	// partly updated or stale set.
+
+	static final int WINDOW_SECS = 5;
+
+	private static final int NUM_STRIPES = numStripes();
+	private static final int PADDING = 8; // longs per cache line
+
+	private final BandwidthMeter parent;
+	private final AtomicLongArray cells = new AtomicLongArray(NUM_STRIPES
+			* PADDING);
+
+	private final long start = System.nanoTime();
+	private final AtomicReference<Marks> marks = new AtomicReference<Marks>(
+			new Marks());
+
+	private static final class Marks {
+		final long second;
+		final long[] totals;
+
+		Marks() {
+			second = 0;
+			totals = new long[WINDOW_SECS + 1];
+		}
+
+		Marks(Marks last, long second, long total) {
+			// Copies the last marks and records the total for the seconds
+			// that passed since, without bytes, and for the current one.
+			this.second = second;
+			totals = last.totals.clone();
+			long first = Math.max(last.second + 1, second - WINDOW_SECS);
+			for (long s = first; s <= second; s++) {
+				totals[indexOf(s)] = total;
+			}
+		}
+
+		long get(long second) {
+			return totals[indexOf(second)];
+		}
+
+		private static int indexOf(long second) {
+			return (int) (second % (WINDOW_SECS + 1));
+		}
+	}
+
+	public BandwidthMeter() {
+		this(null);
+	}
+
+	public BandwidthMeter(BandwidthMeter parent) {
+		// The bytes are added to the parent too.
+		this.parent = parent;
+	}
+
+	private static int numStripes() {
+		// A power of two, at least twice the number of cores.
+		int n = 1;
+		while (n < 2 * Runtime.getRuntime().availableProcessors() && n < 64) {
+			n <<= 1;
+		}
+		return n;
+	}
+
+	public BandwidthMeter getParent() {
+		return parent;
+	}
+
+	public void add(long n) {
+		if (n <= 0)
+			return;
+		mark();
+		int stripe = (int) (Thread.currentThread().getId() & (NUM_STRIPES - 1));
+		cells.addAndGet(stripe * PADDING, n);
+		if (parent != null)
+			parent.add(n);
+	}
+
+	public long total() {
+		long sum = 0;
+		for (int i = 0; i < NUM_STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	public double rate() {
+		// Bytes per second, over the last complete seconds of the window.
+		Marks current = mark();
+		long second = current.second;
+		long from = Math.max(0, second - WINDOW_SECS);
+		if (second == from)
+			return 0;
+		long bytes = current.get(second) - current.get(from);
+		return (double) bytes / (second - from);
+	}
+
+	private Marks mark() {
+		// Records the total at the beginning of the current second, unless
+		// it's already recorded. Returns the marks that include it.
+		long second = (System.nanoTime() - start) / 1000000000L;
+		while (true) {
+			Marks last = marks.get();
+			if (last.second >= second)
+				return last;
+			Marks next = new Marks(last, second, total());
+			if (marks.compareAndSet(last, next))
+				return next;
+		}
+	}
+
+}
@@ -1,14 +1,15 @@
 package com.ndtorrent.client;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
 
-final class DecodedResult {
-	Object value;
-	String remainder;
-}
-
 public final class Bdecoder {
 	// Parsing Expression Grammar
 
@@ -18,144 +19,227 @@ public final class Bdecoder {
 	// BenString ::= length : bytes{length}
 	// BenInteger ::= i "0|-?[1-9]\\d*" e
 
-	// Various methods currently exploit the O(1) String.substring
-	// implementation; the overall runtime complexity is O(n).
-
-	public static Object decode(String text) {
-		// Object will be an instance of String, Long,
-		// List<Object>, SortedMap<String, Object> or null
-		return decodeBenObject(text).value;
-	}
-
-	public static String utf8EncodedString(Object binaryText) {
-		if (binaryText != null)
-			try {
-				return new String(((String) binaryText).getBytes("ISO-8859-1"),
-						"UTF-8");
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		return null;
-	}
-
-	static DecodedResult decodeBenObject(String text) {
-		DecodedResult result = decodeBenString(text);
-
-		if (result.value == null)
-			result = decodeBenInteger(text);
+	// A cursor moves over the bytes once, and the values are built as they
+	// are parsed, so decoding is O(n) without copies of the remainder.
+	// Binary strings are returned as ISO-8859-1 Strings, one char per byte.
 
-		if (result.value == null)
-			result = decodeBenList(text);
+	// Deeper structures are rejected rather than overflowing the stack.
+	static final int MAX_DEPTH = 512;
 
-		if (result.value == null)
-			result = decodeBenDict(text);
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 
-		return result;
+	@SuppressWarnings("serial")
+	private static final class MalformedException extends Exception {
 	}
 
-	static DecodedResult decodeBenList(String text) {
-		DecodedResult result = new DecodedResult();
-
-		if (text == null)
-			return result;
-
-		List<Object> members = new ArrayList<Object>();
+	private static final class Cursor {
+		// Reads either an array, or an InputStream through a buffer.
+		private final InputStream in;
+		private byte[] buf;
+		private int pos;
+		private int limit;
+
+		Cursor(byte[] data, int offset, int length) {
+			in = null;
+			buf = data;
+			pos = offset;
+			limit = offset + length;
+		}
 
-		if (text.startsWith("le")) {
-			result.value = members;
-			result.remainder = text.substring(2);
-		} else if (text.startsWith("l")) {
-			DecodedResult m = decodeBenObject(text.substring(1));
+		Cursor(InputStream in) {
+			this.in = in;
+			buf = new byte[BUFFER_SIZE];
+		}
 
-			while (m.value != null) {
-				members.add(m.value);
+		int peek() throws IOException {
+			// Returns -1 at the end of the input.
+			if (pos == limit && !fill())
+				return -1;
+			return buf[pos] & 0xFF;
+		}
 
-				if (m.remainder.startsWith("e")) {
-					result.value = members;
-					result.remainder = m.remainder.substring(1);
-					break;
-				}
+		int next() throws IOException {
+			int c = peek();
+			if (c >= 0)
+				pos++;
+			return c;
+		}
 
-				m = decodeBenObject(m.remainder);
+		String readString(int length) throws IOException, MalformedException {
+			if (limit - pos >= length) {
+				String s = new String(buf, pos, length, ISO_8859_1);
+				pos += length;
+				return s;
+			}
+			if (in == null)
+				throw new MalformedException();
+			// A string longer than what's buffered, i.e. piece hashes, is
+			// collected a buffer at a time, rather than allocated from the
+			// length; a length beyond the end of the stream, i.e. in a
+			// tracker response, fails before the memory grows.
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					BUFFER_SIZE);
+			int remaining = length;
+			while (remaining > 0) {
+				if (pos == limit && !fill())
+					throw new MalformedException();
+				int n = Math.min(limit - pos, remaining);
+				bytes.write(buf, pos, n);
+				pos += n;
+				remaining -= n;
 			}
+			return bytes.toString("ISO-8859-1");
 		}
 
-		return result;
+		private boolean fill() throws IOException {
+			if (in == null)
+				return false;
+			int n = in.read(buf, 0, buf.length);
+			if (n <= 0)
+				return false;
+			pos = 0;
+			limit = n;
+			return true;
+		}
 	}
 
-	static DecodedResult decodeBenDict(String text) {
-		DecodedResult result = new DecodedResult();
-
-		if (text == null)
-			return result;
-
-		TreeMap<String, Object> members = new TreeMap<String, Object>();
-
-		if (text.startsWith("de")) {
-			result.value = members;
-			result.remainder = text.substring(2);
-		} else if (text.startsWith("d")) {
-			DecodedResult k = decodeBenString(text.substring(1));
-			DecodedResult v = decodeBenObject(k.remainder);
-
-			while (k.value != null && v.value != null) {
-				members.put((String) k.value, v.value);
-
-				if (v.remainder.startsWith("e")) {
-					result.value = members;
-					result.remainder = v.remainder.substring(1);
-					break;
-				}
+	public static Object decode(byte[] data) {
+		return decode(data, 0, data.length);
+	}
 
-				k = decodeBenString(v.remainder);
-				v = decodeBenObject(k.remainder);
-			}
+	public static Object decode(byte[] data, int offset, int length) {
+		// Object will be an instance of String, Long,
+		// List<Object>, SortedMap<String, Object> or null
+		try {
+			return decode(new Cursor(data, offset, length));
+		} catch (IOException e) {
+			return null; // not thrown by arrays
 		}
-
-		return result;
 	}
 
-	static DecodedResult decodeBenString(String text) {
-		DecodedResult result = new DecodedResult();
+	public static Object decode(ByteBuffer data) {
+		// Decodes the remaining bytes; the position isn't changed.
+		if (data.hasArray()) {
+			return decode(data.array(), data.arrayOffset() + data.position(),
+					data.remaining());
+		}
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return decode(bytes);
+	}
 
-		if (text == null)
-			return result;
+	public static Object decode(InputStream in) throws IOException {
+		// Reads as much of the stream as the value takes, plus what's
+		// buffered. Returns null if the value is malformed.
+		return decode(new Cursor(in));
+	}
 
-		String ts[] = text.split(":", 2);
+	public static Object decode(String text) {
+		// The text is expected to hold bytes, one per char, as returned by
+		// reading with ISO-8859-1.
+		try {
+			return decode(text.getBytes("ISO-8859-1"));
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
 
-		if (ts.length == 2 && validBenInteger(ts[0])) {
-			int length = Integer.parseInt(ts[0]);
-			if (length >= 0 && length <= ts[1].length()) {
-				result.value = ts[1].substring(0, length);
-				result.remainder = ts[1].substring(length);
+	public static String utf8EncodedString(Object binaryText) {
+		if (binaryText != null)
+			try {
+				return new String(((String) binaryText).getBytes("ISO-8859-1"),
+						"UTF-8");
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-		}
+		return null;
+	}
 
-		return result;
+	private static Object decode(Cursor cursor) throws IOException {
+		try {
+			return decodeBenObject(cursor, 0);
+		} catch (MalformedException e) {
+			return null;
+		}
 	}
 
-	static DecodedResult decodeBenInteger(String text) {
-		DecodedResult result = new DecodedResult();
+	static Object decodeBenObject(Cursor cursor, int depth)
+			throws IOException, MalformedException {
+		if (depth > MAX_DEPTH)
+			throw new MalformedException();
+		int c = cursor.peek();
+		if (c >= '0' && c <= '9')
+			return decodeBenString(cursor);
+		switch (c) {
+		case 'i':
+			cursor.next();
+			return decodeBenInteger(cursor, 'e');
+		case 'l':
+			cursor.next();
+			return decodeBenList(cursor, depth);
+		case 'd':
+			cursor.next();
+			return decodeBenDict(cursor, depth);
+		default:
+			throw new MalformedException();
+		}
+	}
 
-		if (text == null)
-			return result;
+	static List<Object> decodeBenList(Cursor cursor, int depth)
+			throws IOException, MalformedException {
+		List<Object> members = new ArrayList<Object>();
+		while (cursor.peek() != 'e') {
+			members.add(decodeBenObject(cursor, depth + 1));
+		}
+		cursor.next();
+		return members;
+	}
 
-		if (text.startsWith("i")) {
-			int e = text.indexOf('e', 1);
-			if (e >= 0) {
-				String t = text.substring(1, e);
-				if (validBenInteger(t)) {
-					result.value = Long.parseLong(t);
-					result.remainder = text.substring(e + 1);
-				}
-			}
+	static TreeMap<String, Object> decodeBenDict(Cursor cursor, int depth)
+			throws IOException, MalformedException {
+		TreeMap<String, Object> members = new TreeMap<String, Object>();
+		while (cursor.peek() != 'e') {
+			String key = decodeBenString(cursor);
+			members.put(key, decodeBenObject(cursor, depth + 1));
 		}
+		cursor.next();
+		return members;
+	}
 
-		return result;
+	static String decodeBenString(Cursor cursor) throws IOException,
+			MalformedException {
+		long length = decodeBenInteger(cursor, ':');
+		if (length < 0 || length > Integer.MAX_VALUE)
+			throw new MalformedException();
+		return cursor.readString((int) length);
 	}
 
-	static boolean validBenInteger(String text) {
-		return text.matches("0|-?[1-9]\\d*");
+	static long decodeBenInteger(Cursor cursor, int terminator)
+			throws IOException, MalformedException {
+		// Digits up to the terminator, i.e. "0|-?[1-9]\\d*", without
+		// overflow.
+		boolean negative = false;
+		int c = cursor.next();
+		if (c == '-') {
+			negative = true;
+			c = cursor.next();
+		}
+		if (c < '0' || c > '9' || (c == '0' && negative))
+			throw new MalformedException();
+		long value = c - '0';
+		while (true) {
+			c = cursor.next();
+			if (c == terminator)
+				break;
+			if (c < '0' || c > '9' || value == 0)
+				throw new MalformedException();
+			if (value > (Long.MAX_VALUE - (c - '0')) / 10)
+				throw new MalformedException();
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
 	}
 
 }
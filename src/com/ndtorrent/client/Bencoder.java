@@ -1,87 +1,159 @@
 package com.ndtorrent.client;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.Map;
 import java.util.SortedMap;
 
 public class Bencoder {
+	// Values are written to the output as they are encoded; binary strings
+	// (one char per byte, as decoded) are copied through a small buffer,
+	// so nothing is built in memory as a whole.
+	// Values of other types are skipped, along with their dictionary keys.
 
-	public static String encode(Object object) {
-		// Encodes String, Long, Iterable<Object> or SortedMap<String, Object>
-		return encodeBenObject(object);
-	}
-
-	static String encodeBenObject(Object benObject) {
-		String text = encodeBenString(benObject);
-		
-		if (text == null)
-			text = encodeBenInteger(benObject);
+	private static final int BUFFER_SIZE = 8 * 1024;
 
-		if (text == null)
-			text = encodeBenList(benObject);
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
 
-		if (text == null)
-			text = encodeBenDict(benObject);
+	private Bencoder(OutputStream out) {
+		this.out = out;
+	}
 
-		return text;
+	public static void encode(Object object, OutputStream out)
+			throws IOException {
+		// Encodes String, Long, Iterable<Object> or SortedMap<String, Object>
+		new Bencoder(out).encodeBenObject(object);
 	}
 
-	@SuppressWarnings("unchecked")
-	static String encodeBenList(Object benObject) {
-		if (benObject instanceof Iterable<?>) {
-			StringBuilder builder = new StringBuilder();
-			builder.append("l");
-			
-			for (Object o: (Iterable<Object>) benObject) {
-				String s = encodeBenObject(o);
-				if (s != null)
-					builder.append(s);
-			}
-			
-			builder.append("e");
-			return builder.toString();
+	public static void encode(Object object, final MessageDigest digest) {
+		// Updates the digest, i.e. to compute an info-hash.
+		try {
+			encode(object, new OutputStream() {
+				@Override
+				public void write(int b) {
+					digest.update((byte) b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					digest.update(b, off, len);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace(); // not thrown by the digest
 		}
-			
-		return null; 
 	}
 
-	@SuppressWarnings("unchecked")
-	static String encodeBenDict(Object benObject) {
-		if (benObject instanceof SortedMap<?, ?>) {
-			StringBuilder builder = new StringBuilder();
-			builder.append("d");
-			
-			Map<String, Object> map = (Map<String, Object>) benObject;
-			for (Map.Entry<String, Object> entry : map.entrySet()) {
-				String k = encodeBenString(entry.getKey());
-				String v = encodeBenObject(entry.getValue());
-				if (k != null && v != null) {
-					builder.append(k);
-					builder.append(v);
+	public static void encode(Object object, final ByteBuffer dst) {
+		// Throws BufferOverflowException if the value doesn't fit.
+		try {
+			encode(object, new OutputStream() {
+				@Override
+				public void write(int b) {
+					dst.put((byte) b);
 				}
-			}
-			
-			builder.append("e");
-			return builder.toString();
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					dst.put(b, off, len);
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace(); // not thrown by the buffer
 		}
+	}
 
+	public static String encode(Object object) {
+		// The bytes of the encoding, one char per byte.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			encode(object, bytes);
+			return bytes.toString("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace(); // not thrown by the array
+		}
 		return null;
 	}
 
-	static String encodeBenString(Object benObject) {
-		if (benObject instanceof String) {
-			String s = (String) benObject;
-			return String.format("%d:%s", s.length(), s);
+	static boolean isEncodable(Object benObject) {
+		return benObject instanceof String || benObject instanceof Long
+				|| benObject instanceof Iterable<?>
+				|| benObject instanceof SortedMap<?, ?>;
+	}
+
+	private void encodeBenObject(Object benObject) throws IOException {
+		if (benObject instanceof String)
+			encodeBenString((String) benObject);
+		else if (benObject instanceof Long)
+			encodeBenInteger((Long) benObject);
+		else if (benObject instanceof Iterable<?>)
+			encodeBenList((Iterable<?>) benObject);
+		else if (benObject instanceof SortedMap<?, ?>)
+			encodeBenDict((SortedMap<?, ?>) benObject);
+	}
+
+	private void encodeBenList(Iterable<?> list) throws IOException {
+		out.write('l');
+		for (Object o : list) {
+			encodeBenObject(o);
 		}
+		out.write('e');
+	}
 
-		return null;
+	private void encodeBenDict(SortedMap<?, ?> map) throws IOException {
+		out.write('d');
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			Object k = entry.getKey();
+			Object v = entry.getValue();
+			if (k instanceof String && isEncodable(v)) {
+				encodeBenString((String) k);
+				encodeBenObject(v);
+			}
+		}
+		out.write('e');
 	}
 
-	static String encodeBenInteger(Object benObject) {
-		if (benObject instanceof Long) {
-			return String.format("i%de", (Long) benObject);
+	private void encodeBenString(String s) throws IOException {
+		int length = s.length();
+		writeDecimal(length);
+		out.write(':');
+		for (int i = 0; i < length;) {
+			int n = Math.min(length - i, buffer.length);
+			for (int j = 0; j < n; j++) {
+				buffer[j] = (byte) s.charAt(i + j);
+			}
+			out.write(buffer, 0, n);
+			i += n;
 		}
+	}
 
-		return null;
+	private void encodeBenInteger(long value) throws IOException {
+		out.write('i');
+		writeDecimal(value);
+		out.write('e');
+	}
+
+	private void writeDecimal(long value) throws IOException {
+		// Digits are produced from the end; a negative value is kept
+		// negative, since Long.MIN_VALUE has no positive counterpart.
+		int pos = 20;
+		boolean negative = value < 0;
+		if (!negative)
+			value = -value;
+		do {
+			buffer[--pos] = (byte) ('0' - value % 10);
+			value /= 10;
+		} while (value != 0);
+		if (negative)
+			buffer[--pos] = '-';
+		out.write(buffer, pos, 20 - pos);
 	}
 
 }
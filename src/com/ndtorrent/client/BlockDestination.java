@@ -0,0 +1,16 @@
+package com.ndtorrent.client;
+
+import java.nio.ByteBuffer;
+
+public interface BlockDestination {
+
+	// Returns a buffer with exactly length bytes remaining, where the
+	// payload of an incoming block can be read into, or null if the block
+	// has to be received into a regular message buffer.
+	ByteBuffer reserveBlock(int index, int offset, int length);
+
+	// Releases a reservation whose block will never be completed,
+	// i.e. the socket was closed in the middle of the payload.
+	void abortBlock(int index, int offset, int length);
+
+}
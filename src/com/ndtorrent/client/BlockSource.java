@@ -0,0 +1,15 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+public interface BlockSource {
+
+	// Transfers up to length bytes of a block's payload, starting at the
+	// given offset within the piece, directly to the target channel.
+	// Returns the number of bytes written, which may be zero if the target
+	// cannot accept more bytes, or -1 if the data cannot be read.
+	long transferBlock(int index, int offset, int length,
+			WritableByteChannel target) throws IOException;
+
+}
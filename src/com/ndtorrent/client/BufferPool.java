@@ -0,0 +1,141 @@
+package com.ndtorrent.client;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class BufferPool {
+	// Size classes are powers of two, from 64 bytes to 64 KiB, plus a small
+	// room for a message header. A 16 KiB PIECE frame (9 + 16384 bytes) fits
+	// in the 16 KiB class instead of spilling over to the 32 KiB one.
+	static final int MIN_CLASS_SHIFT = 6;
+	static final int NUM_CLASSES = 11;
+	static final int HEADER_ROOM = 16;
+
+	public static final int DEFAULT_BUFFERS_PER_CLASS = 256;
+
+	private static volatile BufferPool shared = new BufferPool(false,
+			DEFAULT_BUFFERS_PER_CLASS);
+
+	private final boolean direct;
+	private final int max_buffers; // per size class
+
+	private final Queue<ByteBuffer>[] free;
+	private final AtomicInteger[] num_free;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong discards = new AtomicLong();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(boolean direct, int max_buffers) {
+		if (max_buffers < 0)
+			throw new IllegalArgumentException("max_buffers: " + max_buffers);
+
+		this.direct = direct;
+		this.max_buffers = max_buffers;
+
+		free = (Queue<ByteBuffer>[]) new Queue[NUM_CLASSES];
+		num_free = new AtomicInteger[NUM_CLASSES];
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			num_free[i] = new AtomicInteger();
+		}
+	}
+
+	public static BufferPool getShared() {
+		return shared;
+	}
+
+	public static void setShared(BufferPool pool) {
+		// Sockets that are already open keep using the previous pool.
+		if (pool == null)
+			throw new NullPointerException();
+		shared = pool;
+	}
+
+	public static int classSize(int size_class) {
+		return (1 << (MIN_CLASS_SHIFT + size_class)) + HEADER_ROOM;
+	}
+
+	static int sizeClassOf(int length) {
+		// Returns the smallest class that can hold length bytes, or -1.
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			if (length <= classSize(i))
+				return i;
+		}
+		return -1;
+	}
+
+	public ByteBuffer acquire(int length) {
+		// The returned buffer has position 0 and limit set to length.
+		// Its capacity may be larger than length; use slice() to get a view
+		// of the exact length.
+		int size_class = sizeClassOf(length);
+		if (size_class < 0) {
+			misses.incrementAndGet();
+			return allocate(length);
+		}
+
+		ByteBuffer buffer = free[size_class].poll();
+		if (buffer != null) {
+			num_free[size_class].decrementAndGet();
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			buffer = allocate(classSize(size_class));
+		}
+		buffer.clear();
+		buffer.limit(length);
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		// Buffers that weren't acquired from this pool, or exceed the
+		// per class limit, are left to the garbage collector.
+		if (buffer == null || buffer.isDirect() != direct)
+			return;
+		int size_class = sizeClassOf(buffer.capacity());
+		if (size_class < 0 || classSize(size_class) != buffer.capacity())
+			return;
+		if (num_free[size_class].incrementAndGet() > max_buffers) {
+			num_free[size_class].decrementAndGet();
+			discards.incrementAndGet();
+			return;
+		}
+		buffer.clear();
+		free[size_class].offer(buffer);
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+				.allocate(capacity);
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public long discards() {
+		return discards.get();
+	}
+
+	public int numFreeBuffers() {
+		int n = 0;
+		for (AtomicInteger count : num_free) {
+			n += count.get();
+		}
+		return n;
+	}
+
+}
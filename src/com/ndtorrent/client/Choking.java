@@ -2,8 +2,11 @@ package com.ndtorrent.client;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public final class Choking {
 
@@ -33,7 +36,7 @@ public final class Choking {
 
 		// Stable sorting is used, if 2 peers have the same total,
 		// their order remains as is in the list.
-		Collections.sort(candidates);
+		sortByBlocksTotal(candidates);
 
 		final int MAX_SLOTS = 3 + Math.min(optimistic, 1);
 		long now = System.nanoTime();
@@ -119,6 +122,21 @@ public final class Choking {
 
 	}
 
+	private static void sortByBlocksTotal(List<PeerChannel> channels) {
+		// In descending order. The totals are taken before sorting, since
+		// the reactors of the channels keep rolling them.
+		final Map<PeerChannel, Double> totals = new HashMap<PeerChannel, Double>();
+		for (PeerChannel channel : channels) {
+			totals.put(channel, channel.avgBlocksTotal());
+		}
+		Collections.sort(channels, new Comparator<PeerChannel>() {
+			@Override
+			public int compare(PeerChannel c1, PeerChannel c2) {
+				return Double.compare(totals.get(c2), totals.get(c1));
+			}
+		});
+	}
+
 	private static int removeUnchokedOrFormerOptimistic(
 			List<PeerChannel> channels) {
 
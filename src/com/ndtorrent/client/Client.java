@@ -1,9 +1,13 @@
 package com.ndtorrent.client;
 
+import java.io.IOException;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.ndtorrent.client.status.StatusObserver;
+import com.ndtorrent.client.storage.ReadCache;
+import com.ndtorrent.client.storage.WriteCache;
 
 public final class Client implements ClientInfo {
 
@@ -11,6 +15,22 @@ public final class Client implements ClientInfo {
 
 	private String storage_location = "torrents";
 	private String id = "BTCLIENTID1234567890";
+	private boolean use_file_transfer;
+	private long write_cache_size = WriteCache.DEFAULT_BUDGET;
+	// Shared by every torrent, so the capacity is a budget for the client.
+	private ReadCache read_cache = new ReadCache(ReadCache.DEFAULT_CAPACITY);
+	private int num_reactors = ReactorPool.defaultSize();
+	private double pipeline_seconds = PeerChannel.DEFAULT_PIPELINE_SECONDS;
+	private RateLimiter upload_limiter = new RateLimiter();
+	private RateLimiter download_limiter = new RateLimiter();
+	// Limits of the peers of each class, across every torrent.
+	private Map<PeerClass, RateLimiter> class_upload_limiters = newLimiters();
+	private Map<PeerClass, RateLimiter> class_download_limiters = newLimiters();
+	private BandwidthMeter upload_meter = new BandwidthMeter();
+	private BandwidthMeter download_meter = new BandwidthMeter();
+
+	// Shared by the channels of every torrent; started with the first one.
+	private ReactorPool reactors;
 
 	private BTServerSocket server;
 	private Map<String, Peer> peers = new HashMap<String, Peer>();
@@ -26,7 +46,87 @@ public final class Client implements ClientInfo {
 		}
 	}
 
+	public void setFileTransfer(boolean enabled) {
+		// Applies to torrents that are added afterwards.
+		use_file_transfer = enabled;
+	}
+
+	public void setWriteCacheSize(long bytes) {
+		// Applies to torrents that are added afterwards.
+		if (bytes <= 0)
+			throw new IllegalArgumentException("bytes: " + bytes);
+		write_cache_size = bytes;
+	}
+
+	public void setReadCacheSize(long bytes) {
+		// The total for every torrent; zero disables the read-ahead.
+		if (bytes < 0)
+			throw new IllegalArgumentException("bytes: " + bytes);
+		read_cache.setCapacity(bytes);
+	}
+
+	public void setPipelineSeconds(double seconds) {
+		// Applies to connections that are made afterwards.
+		if (!(seconds > 0))
+			throw new IllegalArgumentException("seconds: " + seconds);
+		pipeline_seconds = seconds;
+	}
+
+	public void setUploadRate(long bytes_per_sec) {
+		// For every torrent; RateLimiter.UNLIMITED removes the limit.
+		upload_limiter.setRate(bytes_per_sec);
+	}
+
+	public void setDownloadRate(long bytes_per_sec) {
+		download_limiter.setRate(bytes_per_sec);
+	}
+
+	public void setUploadRate(long bytes_per_sec, PeerClass peer_class) {
+		// For the peers of a class, across every torrent.
+		class_upload_limiters.get(peer_class).setRate(bytes_per_sec);
+	}
+
+	public void setDownloadRate(long bytes_per_sec, PeerClass peer_class) {
+		class_download_limiters.get(peer_class).setRate(bytes_per_sec);
+	}
+
+	private static Map<PeerClass, RateLimiter> newLimiters() {
+		Map<PeerClass, RateLimiter> limiters = new EnumMap<PeerClass, RateLimiter>(
+				PeerClass.class);
+		for (PeerClass c : PeerClass.values()) {
+			limiters.put(c, new RateLimiter());
+		}
+		return limiters;
+	}
+
+	public void setUploadRate(long bytes_per_sec, String info_hash) {
+		// For a single torrent, within the limit of every torrent.
+		Peer peer = peers.get(info_hash);
+		if (peer != null)
+			peer.setUploadRate(bytes_per_sec);
+	}
+
+	public void setDownloadRate(long bytes_per_sec, String info_hash) {
+		Peer peer = peers.get(info_hash);
+		if (peer != null)
+			peer.setDownloadRate(bytes_per_sec);
+	}
+
+	public void setNumReactors(int nthreads) {
+		// Must be set before the first torrent is added.
+		if (nthreads <= 0)
+			throw new IllegalArgumentException("nthreads: " + nthreads);
+		if (reactors != null)
+			throw new IllegalStateException("reactors already started");
+		num_reactors = nthreads;
+	}
+
 	public String addTorrent(String filename) {
+		return addTorrent(filename, false);
+	}
+
+	public String addTorrent(String filename, boolean memory_mapped) {
+		// Memory mapped torrents use MappedByteBuffer windows for storage.
 		MetaInfo meta = new MetaInfo(filename);
 		String info_hash = meta.getInfoHash();
 		if (info_hash == null)
@@ -35,7 +135,16 @@ public final class Client implements ClientInfo {
 		if (peers.containsKey(info_hash))
 			return info_hash;
 
-		Peer peer = new Peer(this, meta);
+		if (reactors == null) {
+			try {
+				reactors = new ReactorPool(num_reactors);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		Peer peer = new Peer(this, meta, memory_mapped, reactors);
 		peers.put(info_hash, peer);
 		if (server != null) {
 			server.addHandler(peer);
@@ -62,6 +171,10 @@ public final class Client implements ClientInfo {
 			}
 		}
 		peers.clear();
+		if (reactors != null) {
+			reactors.close();
+			reactors = null;
+		}
 	}
 
 	@Override
@@ -79,6 +192,68 @@ public final class Client implements ClientInfo {
 		return storage_location;
 	}
 
+	@Override
+	public boolean useFileTransfer() {
+		return use_file_transfer;
+	}
+
+	@Override
+	public long getWriteCacheSize() {
+		return write_cache_size;
+	}
+
+	@Override
+	public ReadCache getReadCache() {
+		return read_cache;
+	}
+
+	@Override
+	public double getPipelineSeconds() {
+		return pipeline_seconds;
+	}
+
+	@Override
+	public RateLimiter getUploadLimiter() {
+		return upload_limiter;
+	}
+
+	@Override
+	public RateLimiter getDownloadLimiter() {
+		return download_limiter;
+	}
+
+	@Override
+	public RateLimiter getUploadLimiter(PeerClass peer_class) {
+		return class_upload_limiters.get(peer_class);
+	}
+
+	@Override
+	public RateLimiter getDownloadLimiter(PeerClass peer_class) {
+		return class_download_limiters.get(peer_class);
+	}
+
+	@Override
+	public BandwidthMeter getUploadMeter() {
+		// Every torrent of the client; safe to sample from any thread.
+		return upload_meter;
+	}
+
+	@Override
+	public BandwidthMeter getDownloadMeter() {
+		return download_meter;
+	}
+
+	public BandwidthMeter getUploadMeter(String info_hash) {
+		// Returns null if the torrent hasn't been added.
+		Peer peer = peers.get(info_hash);
+		return peer == null ? null : peer.getUploadMeter();
+	}
+
+	public BandwidthMeter getDownloadMeter(String info_hash) {
+		Peer peer = peers.get(info_hash);
+		return peer == null ? null : peer.getDownloadMeter();
+	}
+
 	public void addStatusObserver(StatusObserver observer, String info_hash) {
 		Peer peer = peers.get(info_hash);
 		if (peer != null) {
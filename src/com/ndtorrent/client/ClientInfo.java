@@ -1,5 +1,7 @@
 package com.ndtorrent.client;
 
+import com.ndtorrent.client.storage.ReadCache;
+
 public interface ClientInfo {
 
 	public String getID();
@@ -12,6 +14,34 @@ public interface ClientInfo {
 
 	public String getStorageLocation();
 
+	// Upload blocks with FileChannel.transferTo instead of reading them.
+	public boolean useFileTransfer();
+
+	// Bytes of verified pieces that each torrent can keep unwritten.
+	public long getWriteCacheSize();
+
+	// Whole pieces kept for uploading, shared by every torrent.
+	public ReadCache getReadCache();
+
+	// Seconds of data each channel keeps requested beyond a round trip.
+	public double getPipelineSeconds();
+
+	// The parents of the limiters of each torrent.
+	public RateLimiter getUploadLimiter();
+
+	public RateLimiter getDownloadLimiter();
+
+	// The parents, along with the limiters of the torrent, of the limiters
+	// of each peer class within a torrent.
+	public RateLimiter getUploadLimiter(PeerClass peer_class);
+
+	public RateLimiter getDownloadLimiter(PeerClass peer_class);
+
+	// The parents of the meters of each torrent.
+	public BandwidthMeter getUploadMeter();
+
+	public BandwidthMeter getDownloadMeter();
+
 	// public int maxOutgoingConnections();
 
 	// public int maxIncomingConnections();
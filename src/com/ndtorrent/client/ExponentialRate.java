@@ -0,0 +1,41 @@
+package com.ndtorrent.client;
+
+public final class ExponentialRate {
+	// An exponentially weighted moving average of the amount per period.
+	// Unlike a RollingTotal it keeps no buckets; each roll weighs the
+	// amount of the period that ended by alpha = 1 - exp(-1 / periods), so
+	// older periods fade out with a time constant of the given periods.
+
+	private final double alpha;
+	private double amount; // of the current period
+	private double average;
+	private boolean is_empty = true;
+
+	public ExponentialRate(double periods) {
+		if (!(periods > 0))
+			throw new IllegalArgumentException(
+					"periods must be greater than zero");
+
+		alpha = 1 - Math.exp(-1 / periods);
+	}
+
+	public void add(double amount) {
+		this.amount += amount;
+	}
+
+	public void roll() {
+		// The first period is taken as is, instead of rising from zero.
+		if (is_empty) {
+			average = amount;
+			is_empty = false;
+		} else {
+			average += alpha * (amount - average);
+		}
+		amount = 0;
+	}
+
+	public double average() {
+		return average;
+	}
+
+}
@@ -14,9 +14,24 @@ public final class Message {
 	static final byte PIECE = 7;
 	static final byte CANCEL = 8;
 
+	// Bytes with their bit order reversed, for bitfield conversion.
+	private static final byte[] REVERSED = new byte[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			REVERSED[i] = (byte) (Integer.reverse(i) >>> 24);
+		}
+	}
+
 	private ByteBuffer data; // <ID><Payload>
 	private long timestamp;
 
+	private BufferPool pool;
+	private ByteBuffer pooled; // backs data, if acquired from the pool
+
+	// Length of a PIECE payload that isn't held in data, i.e. it has
+	// been received directly into its Piece.
+	private int detached_length;
+
 	private volatile boolean is_prepared = true;
 
 	private Message(ByteBuffer data) {
@@ -27,6 +42,24 @@ public final class Message {
 		return new Message(data);
 	}
 
+	public static Message wrap(ByteBuffer data, BufferPool pool,
+			ByteBuffer pooled) {
+		Message m = new Message(data);
+		m.pool = pool;
+		m.pooled = pooled;
+		return m;
+	}
+
+	public void release() {
+		// Returns the backing buffer, if any, to its pool. Call it once the
+		// message has been processed; its data must not be accessed after.
+		if (pool == null)
+			return;
+		pool.release(pooled);
+		pool = null;
+		pooled = null;
+	}
+
 	public void setTimestamp(long t) {
 		timestamp = t;
 	}
@@ -44,7 +77,11 @@ public final class Message {
 	}
 
 	public int getLength() {
-		return data.capacity();
+		return data.capacity() + detached_length;
+	}
+
+	public boolean hasDetachedPayload() {
+		return detached_length > 0;
 	}
 
 	public int getPayloadLength() {
@@ -114,38 +151,50 @@ public final class Message {
 	}
 
 	public boolean isValidBitfield(int nbits_expected) {
-		// Spare bits are not checked
 		if (!isBitfield())
 			return false;
-		return (nbits_expected + 7) / 8 == getPayloadLength();
+		int length = getPayloadLength();
+		if ((nbits_expected + 7) / 8 != length)
+			return false;
+		// Spare bits at the end must be cleared.
+		int spare_bits = 7 - (nbits_expected + 7) % 8;
+		if (length == 0 || spare_bits == 0)
+			return true;
+		return (data.get(length) & ((1 << spare_bits) - 1)) == 0;
 	}
 
 	public BitSet toBitSet() {
-		byte[] array = getData().array();
-		int length = getPayloadLength() * 8;
-		BitSet set = new BitSet(length);
-		for (int ofs = 0; ofs < length; ofs++) {
-			int i = 1 + ofs / 8; // + 1 to skip ID
-			int bit = 7 - ofs % 8;
-			set.set(ofs, (array[i] & (1 << bit)) != 0);
-		}
-		return set;
+		// The data may be a direct buffer, so array() is not used.
+		// BitTorrent orders the bits of each byte from the most significant,
+		// BitSet from the least significant.
+		ByteBuffer payload = data.duplicate();
+		payload.position(1).limit(1 + getPayloadLength()); // skip ID
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		reverseBits(bytes);
+		return BitSet.valueOf(bytes);
 	}
 
 	public static Message newBitfield(BitSet set, int nbits) {
-		byte[] array = new byte[(nbits + 7) / 8 + 1];
-		byte b = 0;
-		for (int ofs = 0; ofs < nbits; ofs++) {
-			b <<= 1;
-			b |= set.get(ofs) ? 1 : 0;
-			array[1 + ofs / 8] = b;
-		}
-		int spare_bits = 7 - (nbits + 7) % 8;
-		array[array.length - 1] = (byte) (b << spare_bits);
+		int length = (nbits + 7) / 8;
+		byte[] bytes = set.toByteArray();
+		reverseBits(bytes);
+		byte[] array = new byte[length + 1];
 		array[0] = BITFIELD;
+		System.arraycopy(bytes, 0, array, 1, Math.min(length, bytes.length));
+		// Bits past nbits are sent as spare bits, cleared.
+		int spare_bits = 7 - (nbits + 7) % 8;
+		if (length > 0)
+			array[length] &= (byte) (0xFF << spare_bits);
 		return new Message(ByteBuffer.wrap(array));
 	}
 
+	private static void reverseBits(byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = REVERSED[bytes[i] & 0xFF];
+		}
+	}
+
 	public static Message newCancel(int index, int offset, int length) {
 		ByteBuffer data = ByteBuffer.allocate(1 + 3 * 4);
 		data.put(CANCEL);
@@ -174,6 +223,18 @@ public final class Message {
 		return new Message(data);
 	}
 
+	public static Message newBlockHeader(int index, int offset, int length) {
+		// A PIECE message whose payload is kept elsewhere. Only the header,
+		// <ID><index><begin>, is held in the data buffer.
+		ByteBuffer data = ByteBuffer.allocate(1 + 2 * 4);
+		data.put(PIECE);
+		data.putInt(index);
+		data.putInt(offset);
+		Message m = new Message(data);
+		m.detached_length = length;
+		return m;
+	}
+
 	public static Message newHavePiece(int index) {
 		ByteBuffer data = ByteBuffer.allocate(1 + 4);
 		data.put(HAVE);
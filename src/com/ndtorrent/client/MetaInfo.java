@@ -7,7 +7,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 public final class MetaInfo {
 	// Strings in torrent files are expected to be UTF-8 encoded.
@@ -23,17 +22,22 @@ public final class MetaInfo {
 	public MetaInfo(String filename) {
 		try {
 			// Decode torrent file
-			String text = null;
+			Object decoded;
 			FileInputStream fis = new FileInputStream(filename);
-			text = new Scanner(fis, "ISO-8859-1").useDelimiter("^").next();
-			if (text.startsWith("d")) {
-				meta = (Map<String, Object>) Bdecoder.decode(text);
+			try {
+				decoded = Bdecoder.decode(fis);
+			} finally {
+				fis.close();
+			}
+			if (decoded instanceof Map<?, ?>) {
+				meta = (Map<String, Object>) decoded;
 			}
 
 			info = (Map<String, Object>) meta.get("info");
 			MessageDigest m;
 			m = MessageDigest.getInstance("SHA-1");
-			info_hash = m.digest(Bencoder.encode(info).getBytes("ISO-8859-1"));
+			Bencoder.encode(info, m);
+			info_hash = m.digest();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -4,14 +4,12 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -23,6 +21,12 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ndtorrent.client.status.ConnectionInfo;
 import com.ndtorrent.client.status.PieceInfo;
@@ -32,18 +36,67 @@ import com.ndtorrent.client.status.TrackerInfo;
 import com.ndtorrent.client.tracker.Event;
 import com.ndtorrent.client.tracker.Session;
 
-public final class Peer extends Thread {
+public final class Peer {
 	static final int MAX_CHANNELS = 80;
 	static final long SECOND = (long) 1e9;
-
-	private volatile boolean stop_requested;
+	static final long SECOND_MILLIS = 1000;
+	static final int RESUME_SAVE_SECONDS = 5 * 60;
+	static final int TICK_MILLIS = 100;
+	static final long IDLE_TIMEOUT = 135 * SECOND;
+	static final long KEEPALIVE_INTERVAL = 60 * SECOND;
+
+	// Torrents are opened and closed off the reactors, and outside the
+	// lock, since both access the disk; opening may restore resume data,
+	// and closing flushes pending writes. The reactors are shared by other
+	// torrents, which would stall meanwhile.
+	private static final ExecutorService disk_tasks = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PEER-DISK-THREAD-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	// The socket I/O of the channels is performed by reactor threads.
+	// The protocol state of each channel is guarded by the channel, so
+	// the reactors process the messages and hand over the output of the
+	// channels of a torrent in parallel. The torrent, its pieces and the
+	// set of channels are guarded by the lock, which the reactors take
+	// briefly, to save blocks and request more. The home reactor of the
+	// peer runs the periodic tasks and handshakes under the lock.
+	// The lock is taken before a channel, never while a channel is locked.
+	private final Object lock = new Object();
+	private final ReactorPool reactors;
+	private volatile Reactor home;
+	private Map<PeerChannel, ChannelHandler> handlers = new HashMap<PeerChannel, ChannelHandler>();
+	private Set<HandshakeHandler> handshakes = new HashSet<HandshakeHandler>();
+	private boolean opened; // sockets are registered once it's set
+	private volatile boolean closed;
+	private volatile boolean input_paused; // while the write cache is full
+	private final CountDownLatch open_done = new CountDownLatch(1);
+	private final CountDownLatch close_done = new CountDownLatch(1);
 
 	private MetaInfo meta;
 	private Torrent torrent;
 	private ClientInfo client_info;
 	private Socket socket; // reusable address for outgoing connections
-	private Selector channel_selector;
-	private Selector socket_selector;
+
+	// Below the limiters of the client. The sockets are the users of the
+	// limiters of their peer class, which are below both the limiters of
+	// the torrent and those of the class in the client.
+	private final RateLimiter upload_limiter;
+	private final RateLimiter download_limiter;
+	private final Map<PeerClass, RateLimiter> class_upload_limiters = new EnumMap<PeerClass, RateLimiter>(
+			PeerClass.class);
+	private final Map<PeerClass, RateLimiter> class_download_limiters = new EnumMap<PeerClass, RateLimiter>(
+			PeerClass.class);
+	private final BandwidthMeter upload_meter;
+	private final BandwidthMeter download_meter;
 
 	private Queue<BTSocket> pending = new ConcurrentLinkedQueue<BTSocket>();
 	private List<PeerChannel> channels = new LinkedList<PeerChannel>();
@@ -60,12 +113,32 @@ public final class Peer extends Thread {
 	private long eta;
 	private long eta_timeout;
 
-	public Peer(ClientInfo client_info, MetaInfo meta_info) {
-		super("PEER-THREAD");
+	public Peer(ClientInfo client_info, MetaInfo meta_info,
+			ReactorPool reactors) {
+		this(client_info, meta_info, false, reactors);
+	}
 
+	public Peer(ClientInfo client_info, MetaInfo meta_info,
+			boolean memory_mapped, ReactorPool reactors) {
+		this.reactors = reactors;
 		this.client_info = client_info;
 		this.meta = meta_info;
 		torrent = new Torrent(meta_info, client_info.getStorageLocation());
+		torrent.setFileTransfer(client_info.useFileTransfer());
+		torrent.setMemoryMapped(memory_mapped);
+		torrent.setWriteCacheSize(client_info.getWriteCacheSize());
+		torrent.setReadCache(client_info.getReadCache());
+
+		upload_limiter = new RateLimiter(client_info.getUploadLimiter());
+		download_limiter = new RateLimiter(client_info.getDownloadLimiter());
+		for (PeerClass c : PeerClass.values()) {
+			class_upload_limiters.put(c, new RateLimiter(upload_limiter,
+					client_info.getUploadLimiter(c)));
+			class_download_limiters.put(c, new RateLimiter(download_limiter,
+					client_info.getDownloadLimiter(c)));
+		}
+		upload_meter = new BandwidthMeter(client_info.getUploadMeter());
+		download_meter = new BandwidthMeter(client_info.getDownloadMeter());
 
 		String announce = meta.getAnnounce();
 		List<String> trackers = meta.getAnnounceList();
@@ -80,81 +153,176 @@ public final class Peer extends Thread {
 				client_info, meta.getInfoHash()));
 	}
 
+	public BandwidthMeter getUploadMeter() {
+		// Safe to sample from any thread.
+		return upload_meter;
+	}
+
+	public BandwidthMeter getDownloadMeter() {
+		return download_meter;
+	}
+
+	public void setUploadRate(long bytes_per_sec) {
+		upload_limiter.setRate(bytes_per_sec);
+	}
+
+	public void setDownloadRate(long bytes_per_sec) {
+		download_limiter.setRate(bytes_per_sec);
+	}
+
+	public void start() {
+		// The peer runs on a reactor of the pool, along with other peers.
+		home = reactors.next();
+		disk_tasks.execute(new Runnable() {
+			@Override
+			public void run() {
+				open();
+			}
+		});
+	}
+
 	public void close() {
-		stop_requested = true;
+		if (home == null) {
+			close_done.countDown();
+			return;
+		}
+		home.execute(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
 	}
 
-	@Override
-	public void run() {
+	public void join() throws InterruptedException {
+		// Waits until the torrent is closed.
+		close_done.await();
+	}
+
+	private void open() {
+		// Runs on a disk thread; the result is handed over to the home
+		// reactor.
+		boolean ok;
 		try {
 			socket = new Socket();
 			socket.setReuseAddress(true);
 			socket.bind(null);
-			channel_selector = Selector.open();
-			socket_selector = Selector.open();
 			torrent.open();
+			ok = true;
 		} catch (IOException e) {
 			e.printStackTrace();
-			stop_requested = true;
+			ok = false;
+		} finally {
+			open_done.countDown();
 		}
 
-		long last_time = 0;
-
-		while (!stop_requested) {
-			try {
-				// High priority //
-				removeBrokenSockets();
-				socket_selector.selectedKeys().clear();
-				socket_selector.selectNow();
-				processConnectOperations();
-				processHandshakeMessages();
-
-				removeBrokenChannels();
-				configureChannelKeys();
-				channel_selector.selectedKeys().clear();
-				channel_selector.select(100);
-
-				processIncomingMessages();
-				processOutgoingMessages();
-				requestMoreBlocks();
-				// cancelEndGameRequests();
-				requestEndGameBlocks();
-
-				// Low priority //
-				// Operations that are performed once per second.
-				long now = System.nanoTime();
-				if (now - last_time < SECOND)
-					continue;
-
-				last_time = now;
-
-				registerPendingSockets();
-				removeFellowSeeders();
-				cancelDelayedRequests();
-				restoreBrokenRequests();
-				// restoreRejectedPieces();
-				updateAmInterestedState();
-				choking();
-				advertiseAvailablePieces();
-				keepConnectionsAlive();
+		final boolean success = ok;
+		home.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (success)
+					onOpened();
+				else
+					shutdown();
+			}
+		});
+	}
 
-				updateTrackerSessions();
-				updateKnownAddresses();
-				spawnOutgoingConnections();
+	private void onOpened() {
+		if (closed)
+			return;
+		opened = true;
+
+		// Periodic tasks are scheduled on the timer wheel of the home
+		// reactor, instead of being polled by a thread per torrent.
+		schedule(TICK_MILLIS, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					torrent.processVerifiedPieces();
+					advertiseAvailablePieces();
+					requestMoreBlocks();
+					// cancelEndGameRequests();
+					requestEndGameBlocks();
+					configureChannelKeys();
+				}
+			}
+		});
+		schedule(SECOND_MILLIS, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					removeFellowSeeders();
+					restoreBrokenRequests();
+					// restoreRejectedPieces();
+					choking();
+					spawnOutgoingConnections();
+					notifyStatusObservers();
+				}
+			}
+		});
+		schedule(SECOND_MILLIS, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					updateTrackerSessions();
+					updateKnownAddresses();
+				}
+			}
+		});
+		schedule(RESUME_SAVE_SECONDS * SECOND_MILLIS, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					torrent.saveResumeData();
+				}
+			}
+		});
 
-				notifyStatusObservers();
+		registerPendingSockets();
+	}
 
-				rollTotals();
+	static long millisUntil(long time) {
+		// From now until a System.nanoTime() value.
+		long nanos = time - System.nanoTime();
+		return nanos <= 0 ? 0 : (nanos + 999999) / 1000000;
+	}
 
-			} catch (IOException e) {
-				e.printStackTrace();
+	private void schedule(final long period_millis, final Runnable task) {
+		// Runs the task every period until the peer is closed.
+		home.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (closed)
+					return;
+				task.run();
+				home.schedule(this, period_millis);
 			}
-		}
-
-		closeConnections();
-
-		torrent.close();
+		}, period_millis);
+	}
 
+	private void shutdown() {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			closeConnections();
+		}
+		disk_tasks.execute(new Runnable() {
+			@Override
+			public void run() {
+				// The channels are closed, so nothing but the sockets that
+				// are being closed uses the torrent, which synchronizes
+				// on its own.
+				try {
+					open_done.await();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				torrent.close();
+				close_done.countDown();
+			}
+		});
 	}
 
 	private void updateTrackerSessions() {
@@ -193,30 +361,55 @@ public final class Peer extends Thread {
 	}
 
 	private void registerPendingSockets() {
-		for (BTSocket socket : pending) {
-			try {
-				socket.register(socket_selector, SelectionKey.OP_CONNECT
-						| SelectionKey.OP_READ | SelectionKey.OP_WRITE, socket);
-			} catch (ClosedChannelException e) {
+		// Sockets wait until the torrent is opened.
+		if (!opened && !closed)
+			return;
+		while (true) {
+			BTSocket socket = pending.poll();
+			if (socket == null)
+				break;
+			if (closed) {
+				socket.close();
+				continue;
 			}
+			HandshakeHandler handler = new HandshakeHandler(socket);
+			handshakes.add(handler);
+			home.register(socket, SelectionKey.OP_CONNECT
+					| SelectionKey.OP_READ | SelectionKey.OP_WRITE, handler);
 		}
-		pending.clear();
 	}
 
-	private void processConnectOperations() {
-		for (SelectionKey key : socket_selector.selectedKeys()) {
-			if (!key.isValid() || !key.isConnectable())
-				continue;
-			BTSocket socket = (BTSocket) key.attachment();
-			socket.finishConnect();
+	private final class HandshakeHandler implements Reactor.Handler {
+		// Called by the home reactor, until the handshake is done.
+
+		private final BTSocket socket;
+		private SelectionKey key;
+
+		HandshakeHandler(BTSocket socket) {
+			this.socket = socket;
 		}
-	}
 
-	private void processHandshakeMessages() {
-		for (SelectionKey key : socket_selector.selectedKeys()) {
-			if (!key.isValid() || key.isConnectable())
-				continue;
-			BTSocket socket = (BTSocket) key.attachment();
+		@Override
+		public void onRegistered(SelectionKey key) {
+			this.key = key;
+			// The handshake must complete in time.
+			home.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (handshakes.remove(HandshakeHandler.this))
+						close();
+				}
+			}, millisUntil(socket.handshakeExpiresAt()));
+		}
+
+		@Override
+		public void onSelected(SelectionKey key) {
+			if (key.isConnectable()) {
+				if (socket.finishConnect())
+					key.interestOps(key.interestOps()
+							& ~SelectionKey.OP_CONNECT);
+				return;
+			}
 			if (key.isReadable() && socket.hasInputHandshake()) {
 				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
 			}
@@ -228,39 +421,36 @@ public final class Peer extends Thread {
 						meta.getInfoHash()));
 			}
 			socket.processHandshakeMessages();
-			if (socket.isHandshakeDone()) {
+			if (socket.isError() || !socket.isOpen()) {
+				handshakes.remove(this);
+				close();
+			} else if (socket.isHandshakeDone()) {
 				key.cancel();
-				if (socket.isHandshakeSuccessful())
-					addReadyConnection(socket);
-				else
-					socket.close();
+				handshakes.remove(this);
+				synchronized (lock) {
+					if (!closed && socket.isHandshakeSuccessful())
+						addReadyConnection(socket);
+					else
+						socket.close();
+				}
 			}
 		}
-	}
-
-	private void removeBrokenSockets() {
-		for (SelectionKey key : socket_selector.keys()) {
-			BTSocket socket = (BTSocket) key.attachment();
-			if (socket.isHandshakeExpired() || socket.isError()
-					|| !socket.isOpen()) {
 
+		void close() {
+			if (key != null)
 				key.cancel();
-				socket.close();
-			}
+			socket.close();
 		}
 	}
 
 	private void configureChannelKeys() {
-		// ? To avoid filling up the memory with too many pieces,
-		// disable OP_READ if Torrent writer is busy.
-		for (SelectionKey key : channel_selector.keys()) {
-			if (!key.isValid())
-				continue;
-			PeerChannel channel = (PeerChannel) key.attachment();
-			if (channel.hasOutgoingMessages())
-				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-			else
-				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		// Write interest is set by the channels themselves; the keys are
+		// visited only when reading gets paused or resumed.
+		if (input_paused == torrent.isWriteCacheFull())
+			return;
+		input_paused = !input_paused;
+		for (ChannelHandler handler : handlers.values()) {
+			handler.updateInterestOps(true);
 		}
 	}
 
@@ -268,10 +458,19 @@ public final class Peer extends Thread {
 		if (!socket.hasInputHandshake())
 			return false;
 		HandshakeMsg msg = socket.getInputHandshake();
-		if (msg.getInfoHash().equals(meta.getInfoHash())) {
-			return pending.add(socket);
+		if (!msg.getInfoHash().equals(meta.getInfoHash()))
+			return false;
+		pending.add(socket);
+		Reactor home = this.home;
+		if (home != null) {
+			home.execute(new Runnable() {
+				@Override
+				public void run() {
+					registerPendingSockets();
+				}
+			});
 		}
-		return false;
+		return true;
 	}
 
 	private void addReadyConnection(BTSocket socket) {
@@ -296,47 +495,350 @@ public final class Peer extends Thread {
 		}
 
 		PeerChannel channel = new PeerChannel();
+		Reactor reactor = reactors.next();
+		ChannelHandler handler = new ChannelHandler(channel, reactor);
 		channel.socket = socket;
+		channel.availability = torrent.getAvailability();
+		channel.listener = handler;
+		channel.setPipelineSeconds(client_info.getPipelineSeconds());
+		socket.setBlockDestination(torrent);
+		socket.setBlockSource(torrent);
+		PeerClass peer_class = PeerClass.of(socket.getRemoteAddress());
+		socket.setRateLimiters(class_download_limiters.get(peer_class),
+				class_upload_limiters.get(peer_class));
+		socket.setBandwidthMeters(download_meter, upload_meter);
 		channel.setAmInitiator(socket.getLocalPort() == this.socket
 				.getLocalPort());
 		channel.addBitfield(torrent.getAvailablePieces(), torrent.numPieces());
 
-		try {
-			socket.register(channel_selector, SelectionKey.OP_READ, channel);
-			channels.add(channel);
-		} catch (IOException e) {
-			e.printStackTrace();
-			socket.close();
+		channels.add(channel);
+		handlers.put(channel, handler);
+		reactor.register(socket, SelectionKey.OP_READ | SelectionKey.OP_WRITE,
+				handler);
+	}
+
+	private void loadRequestedBlocks(PeerChannel channel,
+			Runnable block_loaded) {
+		// Called under the channel's lock only; the torrent serves blocks
+		// of available pieces without the lock.
+		while (true) {
+			Message m = channel.takeUnprocessedRequest();
+			if (m == null)
+				break;
+			channel.addPiece(torrent.loadBlock(m, block_loaded));
+			m.release();
 		}
 	}
 
-	private void processIncomingMessages() {
-		for (SelectionKey key : channel_selector.selectedKeys()) {
-			if (!key.isValid() || !key.isReadable())
-				continue;
-			PeerChannel channel = (PeerChannel) key.attachment();
-			channel.processIncomingMessages();
-			while (channel.hasUnprocessedIncoming()) {
-				Message m = channel.takeUnprocessedIncoming();
-				if (m.isPiece())
-					torrent.saveBlock(m);
-				else if (m.isBlockRequest())
-					channel.addPiece(torrent.loadBlock(m));
-				else {
-					channel.socket.close();
+	private void saveReceivedBlocks(PeerChannel channel) {
+		// Called under the lock.
+		while (true) {
+			Message m = channel.takeUnprocessedPiece();
+			if (m == null)
+				break;
+			torrent.saveBlock(m);
+		}
+	}
+
+	private final class ChannelHandler implements Reactor.Handler,
+			PeerChannel.Listener {
+		// Called by the reactor thread the channel is registered with.
+		// The timeouts of the channel are timers of the same reactor;
+		// a timer that fires after the channel is removed does nothing.
+
+		private final PeerChannel channel;
+		private final Reactor reactor;
+		private volatile SelectionKey key;
+		private boolean removed; // guarded by the channel
+		private TimerWheel.Timer request_timer;
+		private TimerWheel.Timer throttle_timer;
+
+		ChannelHandler(PeerChannel channel, Reactor reactor) {
+			this.channel = channel;
+			this.reactor = reactor;
+		}
+
+		@Override
+		public void onRegistered(SelectionKey key) {
+			this.key = key;
+			reactor.schedule(idle_check, IDLE_TIMEOUT / 1000000);
+			reactor.schedule(keepalive, KEEPALIVE_INTERVAL / 1000000);
+			reactor.schedule(roll_totals, SECOND_MILLIS);
+		}
+
+		@Override
+		public void onSelected(SelectionKey key) {
+			handle(key.isReadable());
+		}
+
+		private void handle(boolean readable) {
+			if (readable)
+				channel.receiveIncomingMessages();
+
+			// The messages are processed, and the requests are served,
+			// under the channel's lock only.
+			boolean update_torrent;
+			synchronized (channel) {
+				if (!isActive()) {
+					channel.discardIncomingMessages();
+					return;
+				}
+				channel.processIncomingMessages();
+				loadRequestedBlocks(channel, block_loaded);
+				update_torrent = channel.hasUnprocessedPieces()
+						|| channel.amInterested() && !channel.amChoked()
+						&& channel.canRequestMore();
+			}
+			if (update_torrent)
+				updateTorrent();
+
+			flushOutput();
+		}
+
+		private void updateTorrent() {
+			// Received blocks are saved, and more blocks are requested,
+			// under the lock, since they change the pieces of the torrent.
+			synchronized (lock) {
+				synchronized (channel) {
+					if (!isActive()) {
+						channel.discardIncomingMessages();
+						return;
+					}
+					saveReceivedBlocks(channel);
+					torrent.processVerifiedPieces();
+					requestMoreBlocks(channel, torrent.getPartialPieces());
+					requestEndGameBlocks(channel, torrent.getPartialPieces());
+				}
+			}
+		}
+
+		private boolean isActive() {
+			// Must be called under the channel's lock.
+			return !closed && !removed;
+		}
+
+		private void flushOutput() {
+			// Messages are handed over under the channel's lock, written
+			// outside, a batch at a time, until the socket's send buffer is
+			// full.
+			BTSocket socket = channel.socket;
+			while (socket.isOpen()) {
+				if (!channel.prepareOutgoingMessages())
+					break;
+				socket.processOutput();
+				if (socket.hasOutputMessage())
 					break;
+			}
+
+			synchronized (channel) {
+				if (!isActive())
+					return;
+				if (!socket.isError() && socket.isOpen()) {
+					updateInterestOps(false);
+					armRequestTimer();
+					armThrottleTimer();
+					return;
 				}
 			}
+			synchronized (lock) {
+				removeChannel(channel);
+			}
 		}
-	}
 
-	private void processOutgoingMessages() {
-		for (SelectionKey key : channel_selector.selectedKeys()) {
-			if (!key.isValid() || !key.isWritable())
-				continue;
-			PeerChannel channel = (PeerChannel) key.attachment();
-			channel.processOutgoingMessages();
+		private void armThrottleTimer() {
+			// A throttled socket is left out of the select until the rate
+			// limiters refill, since it would be selected again right away.
+			BTSocket socket = channel.socket;
+			if (!socket.isInputThrottled() && !socket.isOutputThrottled())
+				return;
+			if (throttle_timer != null && throttle_timer.isPending())
+				return;
+			throttle_timer = reactor.schedule(throttle_expiry,
+					Math.max(1, socket.millisUntilUnthrottled()));
+		}
+
+		private final Runnable throttle_expiry = new Runnable() {
+			@Override
+			public void run() {
+				handle(true);
+			}
+		};
+
+		@Override
+		public void onOutgoingMessages(PeerChannel channel) {
+			// Called under the channel's lock, when a message is queued to
+			// a channel that had nothing to send. On the channel's own
+			// reactor the change takes effect on the next select without a
+			// wakeup.
+			updateInterestOps(!reactor.inReactorThread());
 		}
+
+		private void armRequestTimer() {
+			// The timer is set for the oldest unfulfilled request only;
+			// when it fires, it's set again for the next one.
+			if (request_timer != null && request_timer.isPending())
+				return;
+			long timeout = channel.nextRequestTimeout();
+			if (timeout < 0)
+				return;
+			request_timer = reactor.schedule(request_expiry,
+					millisUntil(timeout));
+		}
+
+		private final Runnable request_expiry = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (channel) {
+					if (!isActive())
+						return;
+					final Piece TIMED_OUT = null;
+					channel.cancelPendingRequests(TIMED_OUT, null);
+				}
+				flushOutput();
+			}
+		};
+
+		// Blocks loaded by the reader thread are posted to the reactor's
+		// task queue, which wakes up its selector, so that they are sent
+		// without waiting for the next select. A burst of blocks is posted
+		// once.
+		private final AtomicBoolean loaded_posted = new AtomicBoolean();
+
+		private final Runnable block_loaded = new Runnable() {
+			@Override
+			public void run() {
+				if (loaded_posted.compareAndSet(false, true))
+					reactor.execute(flush_loaded);
+			}
+		};
+
+		private final Runnable flush_loaded = new Runnable() {
+			@Override
+			public void run() {
+				loaded_posted.set(false);
+				synchronized (channel) {
+					if (!isActive())
+						return;
+					channel.checkPreparedPieces();
+				}
+				flushOutput();
+			}
+		};
+
+		private final Runnable idle_check = new Runnable() {
+			@Override
+			public void run() {
+				// TODO remove when we're not seeding and:
+				// 1. X minutes passed since last time we're interested in
+				// them
+				// 2. we're choked for ~45 minutes
+				long expires_at;
+				synchronized (channel) {
+					if (!isActive())
+						return;
+					BTSocket socket = channel.socket;
+					long last_input = socket.lastInputMessageAt();
+					long last_output = socket.lastOutputMessageAt();
+					expires_at = Math.max(last_input, last_output)
+							+ IDLE_TIMEOUT;
+				}
+				if (System.nanoTime() >= expires_at) {
+					synchronized (lock) {
+						removeChannel(channel);
+					}
+					return;
+				}
+				reactor.schedule(this, millisUntil(expires_at));
+			}
+		};
+
+		private final Runnable roll_totals = new Runnable() {
+			@Override
+			public void run() {
+				// The counters of the socket are updated by this reactor,
+				// so they are rolled here rather than by the home reactor.
+				synchronized (channel) {
+					if (!isActive())
+						return;
+					channel.socket.rollTotals();
+					channel.rollBlocksTotal();
+				}
+				reactor.schedule(this, SECOND_MILLIS);
+			}
+		};
+
+		private final Runnable keepalive = new Runnable() {
+			@Override
+			public void run() {
+				// If the socket has an outgoing message for more than the
+				// interval, it probably has stalled. In this case we don't
+				// add a keep-alive message.
+				long next_at;
+				synchronized (channel) {
+					if (!isActive())
+						return;
+					BTSocket socket = channel.socket;
+					long now = System.nanoTime();
+					next_at = socket.lastOutputMessageAt() + KEEPALIVE_INTERVAL;
+					if (now >= next_at) {
+						if (!socket.hasOutputMessage())
+							channel.addKeepAlive();
+						next_at = now + KEEPALIVE_INTERVAL;
+					}
+				}
+				flushOutput();
+				reactor.schedule(this, millisUntil(next_at));
+			}
+		};
+
+		void updateInterestOps(boolean wakeup) {
+			// To avoid filling up the memory with too many pieces,
+			// OP_READ is disabled while the torrent's write cache is full.
+			SelectionKey key = this.key;
+			if (key == null || !key.isValid())
+				return;
+			BTSocket socket = channel.socket;
+			int ops = 0;
+			if (!input_paused && !socket.isInputThrottled())
+				ops |= SelectionKey.OP_READ;
+			if (channel.hasOutgoingMessages() && !socket.isOutputThrottled())
+				ops |= SelectionKey.OP_WRITE;
+			try {
+				if (key.interestOps() == ops)
+					return;
+				key.interestOps(ops);
+			} catch (CancelledKeyException e) {
+				return;
+			}
+			// A change takes effect on the next select, unless the reactor
+			// gets woken up.
+			if (wakeup)
+				reactor.wakeup();
+		}
+
+		void close() {
+			// The socket is released when the reactor deregisters it.
+			// The socket is closed, and the received messages are
+			// discarded, by the reactor, which is the thread that performs
+			// the I/O; blocks that were read in place must release their
+			// reservations.
+			if (reactor.inReactorThread()) {
+				channel.socket.close();
+				channel.discardIncomingMessages();
+			} else {
+				reactor.execute(close_channel);
+			}
+		}
+
+		private final Runnable close_channel = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (channel) {
+					channel.socket.close();
+					channel.discardIncomingMessages();
+				}
+			}
+		};
 	}
 
 	private void cancelEndGameRequests() {
@@ -358,45 +860,45 @@ public final class Peer extends Thread {
 		}
 		pending.clear();
 
-		for (SelectionKey key : socket_selector.keys()) {
-			BTSocket socket = (BTSocket) key.attachment();
-			socket.close();
+		for (HandshakeHandler handler : handshakes) {
+			handler.close();
 		}
+		handshakes.clear();
 
 		for (PeerChannel channel : channels) {
-			channel.socket.close();
+			ChannelHandler handler = handlers.get(channel);
+			synchronized (channel) {
+				handler.removed = true;
+				channel.removeAvailability();
+			}
+			handler.close();
 		}
 		channels.clear();
+		handlers.clear();
 
 		try {
-			socket.close();
-			channel_selector.close();
-			socket_selector.close();
+			if (socket != null)
+				socket.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
 	}
 
-	private void removeBrokenChannels() {
-		// TODO remove when we're not seeding and:
-		// 1. X minutes passed since last time we're interested in them
-		// 2. we're choked for ~45 minutes
-		long now = System.nanoTime();
-		Iterator<PeerChannel> iter = channels.iterator();
-		while (iter.hasNext()) {
-			PeerChannel channel = iter.next();
-			long last_input = channel.socket.lastInputMessageAt();
-			long last_output = channel.socket.lastOutputMessageAt();
-			boolean expired = now - Math.max(last_input, last_output) > 135 * 1e9;
-			boolean is_error = channel.socket.isError();
-			if (is_error || expired || !channel.socket.isOpen()) {
-				// Registered sockets that get closed will eventually be removed
-				// by the selector.
-				channel.socket.close();
-				iter.remove();
-			}
+	private void removeChannel(PeerChannel channel) {
+		// Registered sockets that get closed will eventually be removed
+		// by the selector.
+		ChannelHandler handler = handlers.remove(channel);
+		if (handler == null)
+			return;
+		// A reactor that has the channel locked finishes first; it won't
+		// process the channel's messages afterwards.
+		synchronized (channel) {
+			handler.removed = true;
+			channel.removeAvailability();
 		}
+		handler.close();
+		channels.remove(channel);
 	}
 
 	private void removeFellowSeeders() {
@@ -404,16 +906,9 @@ public final class Peer extends Thread {
 			return;
 
 		BitSet available = torrent.getAvailablePieces();
-		for (PeerChannel channel : channels) {
+		for (PeerChannel channel : new ArrayList<PeerChannel>(channels)) {
 			if (channel.hasPieces(available))
-				channel.socket.close();
-		}
-	}
-
-	private void cancelDelayedRequests() {
-		for (PeerChannel channel : channels) {
-			final Piece TIMED_OUT = null;
-			channel.cancelPendingRequests(TIMED_OUT, null);
+				removeChannel(channel);
 		}
 	}
 
@@ -431,7 +926,7 @@ public final class Peer extends Thread {
 	}
 
 	private void spawnOutgoingConnections() {
-		int nsockets = socket_selector.keys().size();
+		int nsockets = handshakes.size() + pending.size();
 		int nchannels = channels.size();
 		if (nsockets + nchannels >= MAX_CHANNELS)
 			return;
@@ -446,6 +941,7 @@ public final class Peer extends Thread {
 			socket = new BTSocket(this.socket.getLocalSocketAddress());
 			socket.connect(remote);
 			pending.add(socket);
+			registerPendingSockets();
 		} catch (IOException e) {
 			if (socket != null)
 				socket.close();
@@ -454,22 +950,11 @@ public final class Peer extends Thread {
 	}
 
 	private void advertiseAvailablePieces() {
-		BitSet available = torrent.getAvailablePieces();
-		for (PeerChannel channel : channels) {
-			channel.advertise(available);
-		}
-	}
-
-	private void updateAmInterestedState() {
-		for (PeerChannel channel : channels) {
-			channel.updateAmInterested();
-		}
-	}
-
-	private void rollTotals() {
+		List<Integer> pieces = torrent.takeNewlyAvailable();
+		if (pieces.isEmpty())
+			return;
 		for (PeerChannel channel : channels) {
-			channel.socket.rollTotals();
-			channel.rollBlocksTotal();
+			channel.advertise(pieces);
 		}
 	}
 
@@ -485,68 +970,95 @@ public final class Peer extends Thread {
 		// The number of channels that will contribute to a particular piece
 		// depends on how many requests each channel can pipeline.
 
+		Collection<Piece> partial_entries = torrent.getPartialPieces();
+		for (PeerChannel channel : channels) {
+			requestMoreBlocks(channel, partial_entries);
+		}
+	}
+
+	private void requestMoreBlocks(PeerChannel channel,
+			Collection<Piece> partial_entries) {
+		// Called under the lock.
+		synchronized (channel) {
+			requestMoreBlocksOf(channel, partial_entries);
+		}
+	}
+
+	private void requestMoreBlocksOf(PeerChannel channel,
+			Collection<Piece> partial_entries) {
 		if (torrent.isSeed() || !torrent.hasUnregisteredPieces())
 			return;
+		if (channel.amChoked() || !channel.amInterested())
+			return;
 
 		// When we begin downloading, multiple random pieces may be selected.
 		boolean begin = !torrent.hasAvailablePieces();
 
-		Collection<Piece> partial_entries = torrent.getPartialPieces();
-		for (PeerChannel channel : channels) {
-			if (channel.amChoked() || !channel.amInterested())
-				continue;
-			for (int priority = 0; priority <= 1; priority++)
-				for (Piece piece : partial_entries) {
-					if (!channel.canRequestMore())
-						break;
-					int index = piece.getIndex();
-					if (channel.hasPiece(index)) {
-						if (priority == 0 && !channel.participatedIn(index))
-							continue;
-						channel.addMaximumRequests(piece,
-								piece.getNotRequested());
-					}
+		for (int priority = 0; priority <= 1; priority++)
+			for (Piece piece : partial_entries) {
+				if (!channel.canRequestMore())
+					break;
+				int index = piece.getIndex();
+				if (channel.hasPiece(index)) {
+					if (priority == 0 && !channel.participatedIn(index))
+						continue;
+					channel.addMaximumRequests(piece, piece.getNotRequested());
 				}
-			if (channel.canRequestMore()) {
-				int index = begin ? selectRandomPiece(channel)
-						: selectRarePiece(channel);
-				if (index < 0)
-					continue;
-				Piece piece = torrent.registerPiece(index);
-				channel.addMaximumRequests(piece, piece.getNotRequested());
-				// Update partial_entries and possibly prevent next channels
-				// from selecting a new piece, and avoid piling up pieces.
-				partial_entries = torrent.getPartialPieces();
 			}
+		if (channel.canRequestMore()) {
+			int index = begin ? selectRandomPiece(channel)
+					: selectRarePiece(channel);
+			if (index < 0)
+				return;
+			// partial_entries is a live view of the torrent's pieces, so
+			// the next channels see the new piece, and avoid piling up
+			// pieces.
+			Piece piece = torrent.registerPiece(index);
+			channel.addMaximumRequests(piece, piece.getNotRequested());
 		}
 	}
 
 	private void requestEndGameBlocks() {
 		// On end-game, a block may be requested from different channels.
 
+		Collection<Piece> partial_entries = torrent.getPartialPieces();
+		for (PeerChannel channel : channels) {
+			requestEndGameBlocks(channel, partial_entries);
+		}
+	}
+
+	private void requestEndGameBlocks(PeerChannel channel,
+			Collection<Piece> partial_entries) {
+		synchronized (channel) {
+			requestEndGameBlocksOf(channel, partial_entries);
+		}
+	}
+
+	private void requestEndGameBlocksOf(PeerChannel channel,
+			Collection<Piece> partial_entries) {
 		if (torrent.isSeed() || torrent.hasUnregisteredPieces())
 			return;
+		// Pieces that are being checked may not be missing.
+		if (torrent.isChecking())
+			return;
+		if (channel.amChoked() || !channel.amInterested())
+			return;
 
-		Collection<Piece> partial_entries = torrent.getPartialPieces();
-		for (PeerChannel channel : channels) {
-			if (channel.amChoked() || !channel.amInterested())
+		for (Piece piece : partial_entries) {
+			int index = piece.getIndex();
+			if (!channel.hasPiece(index))
 				continue;
-			for (Piece piece : partial_entries) {
-				int index = piece.getIndex();
-				if (!channel.hasPiece(index))
-					continue;
-				if (!channel.canRequestMore())
-					break;
-				BitSet blocks = channel.findNotRequested(piece);
-				blocks.andNot(piece.getReservedBlocks());
-				channel.addMaximumRequests(piece, blocks);
-			}
 			if (!channel.canRequestMore())
-				continue;
-			for (Piece piece : partial_entries) {
-				if (channel.hasPiece(piece.getIndex()))
-					piece.getReservedBlocks().clear();
-			}
+				break;
+			BitSet blocks = channel.findNotRequested(piece);
+			blocks.andNot(piece.getReservedBlocks());
+			channel.addMaximumRequests(piece, blocks);
+		}
+		if (!channel.canRequestMore())
+			return;
+		for (Piece piece : partial_entries) {
+			if (channel.hasPiece(piece.getIndex()))
+				piece.getReservedBlocks().clear();
 		}
 	}
 
@@ -566,60 +1078,10 @@ public final class Peer extends Thread {
 	}
 
 	private int selectRarePiece(PeerChannel channel_interested) {
-		// The list of pieces is partitioned in 10 overlapped segments,
-		// which are traversed in random order. From the first segment
-		// with available pieces the least common piece is selected.
-		// This algorithm does not select a piece that has the global
-		// minimum availability, but a local one instead.
-
-		Integer[] segments = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
-		Collections.shuffle(Arrays.asList(segments));
-
-		BitSet unregistered = torrent.getUnregistered();
-		int pieces_length = unregistered.length();
-		for (Integer seg : segments) {
-			int min = Integer.MAX_VALUE;
-			int index = -1;
-			int nmatch = 0;
-			for (int i = seg; i < pieces_length; i += 10) {
-				if (!unregistered.get(i) || !channel_interested.hasPiece(i))
-					continue;
-				int availability = 0;
-				for (PeerChannel channel : channels) {
-					if (!channel.hasPiece(i))
-						continue;
-					if (++availability > min)
-						break;
-				}
-				if (availability == 0 || availability > min)
-					continue;
-				// If the segment has n pieces with the same minimum value
-				// we select one of them at random with probability 1/n.
-				nmatch = availability == min ? nmatch + 1 : 0;
-				if (availability < min
-						|| Math.floor(Math.random() * nmatch) == 0) {
-					min = availability;
-					index = i;
-				}
-			}
-			if (index >= 0)
-				return index;
-		}
-
-		return -1;
-	}
-
-	private void keepConnectionsAlive() {
-		long now = System.nanoTime();
-		for (PeerChannel channel : channels) {
-			// If the socket has an outgoing message for more than 60 seconds,
-			// it probably has stalled. In this case we don't add a keep-alive
-			// message.
-			if (now - channel.socket.lastOutputMessageAt() > 60 * 1e9
-					&& !channel.socket.hasOutputMessage()) {
-				channel.addKeepAlive();
-			}
-		}
+		// The least common unregistered piece among the pieces of the
+		// channel, from the availability counts of every channel.
+		return torrent.getAvailability().selectRarest(
+				channel_interested.getAvailablePieces());
 	}
 
 	public void addStatusObserver(StatusObserver observer) {
@@ -656,13 +1118,13 @@ public final class Peer extends Thread {
 		BitSet missing = new BitSet(torrent.numPieces());
 		missing.set(0, torrent.numPieces());
 		missing.andNot(torrent.getAvailablePieces());
-		double input_rate = 0;
-		double output_rate = 0;
 		for (PeerChannel channel : channels) {
-			input_rate += channel.socket.inputPerSec();
-			output_rate += channel.socket.outputPerSec();
-			missing.andNot(channel.getAvailablePieces());
+			synchronized (channel) {
+				missing.andNot(channel.getAvailablePieces());
+			}
 		}
+		double input_rate = download_meter.rate();
+		double output_rate = upload_meter.rate();
 
 		// Estimated time of arrival
 		long remaining = torrent.getRemainingLength();
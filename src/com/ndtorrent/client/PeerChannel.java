@@ -4,10 +4,25 @@ import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
 
 public final class PeerChannel implements Comparable<PeerChannel> {
+	// The protocol state of the channel is guarded by the channel itself,
+	// so the channels of a torrent are processed by their reactors in
+	// parallel. Methods that change pieces of the torrent must be called
+	// under the torrent's lock too, which is taken before the channel.
+
 	static final int MAX_REQUESTS = 255;
+	static final int MIN_REQUESTS = 2;
+	static final long REQUEST_TIMEOUT = 20 * (long) 1e9;
+
+	// Seconds of data that the pipelined requests should cover, on top of
+	// a round trip.
+	public static final double DEFAULT_PIPELINE_SECONDS = 2;
+
+	// The minimum round trip is kept for about this long; queueing at the
+	// remote inflates the other samples, so they would feed back into the
+	// depth of the pipeline.
+	private static final int RTT_WINDOW_SECS = 30;
 
 	// A rolling total longer than the choking round can make the
 	// rating a bit more accurate due to data transmission delays.
@@ -15,8 +30,22 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 
 	public BTSocket socket;
 
+	// Notified when the channel has messages to send, after it had none,
+	// so that write interest doesn't have to be polled.
+	public interface Listener {
+		void onOutgoingMessages(PeerChannel channel);
+	}
+
+	public Listener listener;
+	private boolean has_outgoing;
+
+	// Shared by the channels of a torrent; updated on BITFIELD and HAVE.
+	public PieceAvailability availability;
+
 	private BitSet available = new BitSet();
 	private BitSet advertised = new BitSet();
+	private int num_pieces;
+	private int num_wanted; // available but not advertised, for interest
 	private BitSet participated = new BitSet(); // Pieces received
 
 	private boolean am_initiator;
@@ -36,18 +65,32 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 	private long unchoke_end_time;
 	private RollingTotal blocks_total = new RollingTotal(ROLLING_SECS);
 
+	// Round trips from sending a REQUEST until its PIECE arrives, in ns.
+	private double pipeline_seconds = DEFAULT_PIPELINE_SECONDS;
+	private long smoothed_rtt = -1;
+	private long min_rtt = -1;
+	private long window_min_rtt = -1;
+	private int rtt_window_secs;
+
 	private LinkedList<Message> incoming = new LinkedList<Message>();
 	private LinkedList<Message> outgoing = new LinkedList<Message>();
 
-	// Distinct list for Piece messages to reduce "iterate and filter" code.
-	private LinkedList<Message> outgoing_pieces = new LinkedList<Message>();
+	// Distinct tables for block messages, keyed by (piece, begin), so that
+	// cancels and pieces don't have to scan the queues.
+	private RequestTable outgoing_requests = new RequestTable(); // not sent
+	private RequestTable outgoing_pieces = new RequestTable();
 
 	// Requests and pieces the client has received.
 	private LinkedList<Message> unprocessed_pieces = new LinkedList<Message>();
-	private LinkedList<Message> unprocessed_requests = new LinkedList<Message>();
+	private RequestTable unprocessed_requests = new RequestTable();
+
+	// Requests the client has made, sent or not.
+	private RequestTable unfulfilled = new RequestTable();
 
-	// Requests the client has sent.
-	private LinkedList<Message> unfulfilled = new LinkedList<Message>();
+	// From receiving a request until its piece is handed to the socket.
+	private long total_upload_latency;
+	private long last_upload_latency;
+	private int num_uploads;
 
 	@Override
 	public int compareTo(PeerChannel other) {
@@ -55,44 +98,126 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 		return (int) Math.signum(other.avgBlocksTotal() - avgBlocksTotal());
 	}
 
-	public int numAvailablePieces() {
+	public synchronized int numAvailablePieces() {
 		return available.cardinality();
 	}
 
-	public int numIncomingRequests() {
+	public synchronized int numIncomingRequests() {
 		return outgoing_pieces.size() + unprocessed_requests.size();
 	}
 
-	public int numOutgoingRequests() {
+	public synchronized int numOutgoingRequests() {
 		return unfulfilled.size();
 	}
 
-	public void rollBlocksTotal() {
+	public synchronized long nextRequestTimeout() {
+		// Returns when the oldest unfulfilled request expires, or -1.
+		Message m = unfulfilled.peek();
+		return m == null ? -1 : m.getTimestamp();
+	}
+
+	public synchronized double averageUploadLatency() {
+		// In seconds.
+		return num_uploads == 0 ? 0 : total_upload_latency / 1e9
+				/ num_uploads;
+	}
+
+	public synchronized double lastUploadLatency() {
+		return last_upload_latency / 1e9;
+	}
+
+	public synchronized void rollBlocksTotal() {
 		blocks_total.roll();
 		blocks_total.add(socket.blocksInputTotal());
 		socket.clearBlocksInputTotal();
+		if (++rtt_window_secs >= RTT_WINDOW_SECS) {
+			min_rtt = window_min_rtt;
+			window_min_rtt = -1;
+			rtt_window_secs = 0;
+		}
+	}
+
+	public synchronized void setPipelineSeconds(double seconds) {
+		pipeline_seconds = seconds;
+	}
+
+	public synchronized double roundTripTime() {
+		// Smoothed, in seconds, or -1 if no sample exists.
+		return smoothed_rtt < 0 ? -1 : smoothed_rtt / 1e9;
+	}
+
+	private void addRttSample(long rtt) {
+		if (rtt < 0)
+			return;
+		if (smoothed_rtt < 0)
+			smoothed_rtt = rtt;
+		else
+			smoothed_rtt += (rtt - smoothed_rtt) / 8;
+		if (min_rtt < 0 || rtt < min_rtt)
+			min_rtt = rtt;
+		if (window_min_rtt < 0 || rtt < window_min_rtt)
+			window_min_rtt = rtt;
 	}
 
-	public double avgBlocksTotal() {
+	public synchronized double avgBlocksTotal() {
 		return blocks_total.average();
 	}
 
-	public void processIncomingMessages() {
+	public void receiveIncomingMessages() {
+		// Called by the reactor, without any lock. Besides the socket I/O,
+		// the socket may reserve blocks in the torrent, to read PIECE
+		// payloads in place. The received messages are confined to the
+		// reactor, which handles them later by processIncomingMessages.
 		receiveIncoming();
+	}
+
+	public synchronized void processIncomingMessages() {
 		processIncoming();
 	}
 
-	public void processOutgoingMessages() {
+	public synchronized boolean prepareOutgoingMessages() {
+		// Hands as many messages over to the socket as its output batch
+		// accepts. Returns false if there's nothing to send.
 		// Notification messages have higher priority and are sent ASAP,
 		// because subsequent Pieces in a slow upload channel can block
 		// peers from communicating.
-		sendOutgoing(outgoing);
-		sendOutgoing(outgoing_pieces);
+		while (socket.canAddOutputMessage()) {
+			if (prepareNext(outgoing) || prepareNext(outgoing_requests)
+					|| prepareNext(outgoing_pieces))
+				continue;
+			// Pieces that get prepared later are signaled by
+			// checkPreparedPieces.
+			has_outgoing = false;
+			break;
+		}
+		return socket.hasOutputMessage();
 	}
 
-	public boolean hasOutgoingMessages() {
-		return socket.hasOutputMessage() || hasReadyOutgoingPiece()
-				|| !outgoing.isEmpty();
+	public synchronized boolean hasOutgoingMessages() {
+		// Doesn't scan the queues; it's cleared only when
+		// prepareOutgoingMessages finds nothing to send.
+		return socket.hasOutputMessage() || has_outgoing;
+	}
+
+	public synchronized void checkPreparedPieces() {
+		// Must be called when a piece that was loaded asynchronously gets
+		// prepared; it's signaled unless the channel has output anyway.
+		if (!has_outgoing && !outgoing_pieces.isEmpty()
+				&& hasReadyOutgoingPiece())
+			signalOutgoing();
+	}
+
+	private void signalOutgoing() {
+		if (has_outgoing)
+			return;
+		has_outgoing = true;
+		if (listener != null)
+			listener.onOutgoingMessages(this);
+	}
+
+	private void enqueue(Message m) {
+		outgoing.add(m);
+		signalOutgoing();
 	}
 
 	private boolean hasReadyOutgoingPiece() {
@@ -103,71 +228,91 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 		return false;
 	}
 
-	public boolean hasUnprocessedIncoming() {
-		return !unprocessed_pieces.isEmpty() || !unprocessed_requests.isEmpty();
+	public synchronized boolean hasUnprocessedPieces() {
+		return !unprocessed_pieces.isEmpty();
 	}
 
-	public Message takeUnprocessedIncoming() {
+	public synchronized void discardIncomingMessages() {
+		// Must be called when the messages that were received won't be
+		// processed, i.e. the channel is removed, by the thread that
+		// receives them.
+		for (Message m : incoming) {
+			socket.discardInputMessage(m);
+		}
+		incoming.clear();
+		for (Message m : unprocessed_pieces) {
+			socket.discardInputMessage(m);
+		}
+		unprocessed_pieces.clear();
+		clearUnprocessedRequests();
+	}
+
+	public synchronized Message takeUnprocessedPiece() {
 		// Returns null if no message exists.
-		if (!unprocessed_pieces.isEmpty())
-			return unprocessed_pieces.pollFirst();
-		else
-			return unprocessed_requests.pollFirst();
+		return unprocessed_pieces.pollFirst();
+	}
+
+	public synchronized Message takeUnprocessedRequest() {
+		return unprocessed_requests.poll();
 	}
 
-	public boolean participatedIn(int piece_index) {
+	public synchronized boolean participatedIn(int piece_index) {
 		return participated.get(piece_index);
 	}
 
-	public boolean hasPiece(int index) {
+	public synchronized boolean hasPiece(int index) {
 		return available.get(index);
 	}
 
-	public boolean hasPieces(BitSet pieces) {
+	public synchronized boolean hasPieces(BitSet pieces) {
 		BitSet common = (BitSet) available.clone();
 		common.and(pieces);
 		return common.equals(pieces);
 	}
 
-	public BitSet getAvailablePieces() {
+	public synchronized BitSet getAvailablePieces() {
+		// Not a copy; it must be used while the channel is locked.
 		return available;
 	}
 
-	public BitSet findNotRequested(Piece piece) {
+	public synchronized BitSet findNotRequested(Piece piece) {
+		// Must be called under the torrent's lock, as must the methods
+		// below that take pieces.
 		BitSet requests = getPendingRequests(piece);
 		requests.or(piece.getAvailableBlocks());
 		requests.flip(0, piece.numBlocks());
 		return requests;
 	}
 
-	public BitSet getPendingRequests(Piece piece) {
-		// TODO make unfulfilled an ordered ArrayList and use binary search to
-		// locate the requests.
-		BitSet requests = new BitSet(piece.numBlocks());
-		for (Message m : unfulfilled) {
-			if (m.getPieceIndex() == piece.getIndex()) {
-				// The requested length is a multiple of block length.
-				int start = piece.getBlockIndex(m.getBlockBegin());
-				int block_length = piece.getBlockLength(start);
-				int nblocks = m.getBlockLength() / block_length;
-				if (nblocks * block_length < m.getBlockLength())
-					nblocks++;
-				requests.set(start, start + nblocks);
-			}
+	public synchronized BitSet getPendingRequests(Piece piece) {
+		// Pieces that have arrived but aren't saved yet are included, since
+		// the torrent's lock is taken after the messages are processed.
+		int index = piece.getIndex();
+		BitSet requests = unfulfilled.getBlocks(index);
+		for (Message m : unprocessed_pieces) {
+			if (m.getPieceIndex() != index)
+				continue;
+			int start = m.getBlockBegin() / Piece.BLOCK_LENGTH;
+			int end = (m.getBlockBegin() + m.getBlockLength()
+					+ Piece.BLOCK_LENGTH - 1) / Piece.BLOCK_LENGTH;
+			requests.set(start, Math.max(start + 1, end));
 		}
 		return requests;
 	}
 
-	public boolean canRequestMore() {
+	public synchronized boolean canRequestMore() {
+		return numOutgoingRequests() < requestQueueDepth();
+	}
+
+	public synchronized int requestQueueDepth() {
+		// Enough requests to keep the channel busy for a round trip plus
+		// the pipeline seconds, at the current download rate.
 		// A small number of pipelined requests, i.e. 10, on fast channels,
 		// can result to bad download rates even on local connections!
-		if (avgBlocksTotal() < 1000) {
-			return !socket.hasPartialInputMesssage()
-					&& numOutgoingRequests() < 1;
-		} else {
-			final int REQUESTS = 2 + (int) (avgBlocksTotal() / (8 * 1024));
-			return numOutgoingRequests() < Math.min(REQUESTS, MAX_REQUESTS);
-		}
+		double rtt = min_rtt < 0 ? 0 : min_rtt / 1e9;
+		double bytes = avgBlocksTotal() * (rtt + pipeline_seconds);
+		double depth = Math.ceil(bytes / maxRequestLength());
+		return (int) Math.max(MIN_REQUESTS, Math.min(depth, MAX_REQUESTS));
 	}
 
 	private int maxRequestLength() {
@@ -181,7 +326,8 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 			return 16 * 1024;
 	}
 
-	public void addMaximumRequests(Piece piece, BitSet blocks) {
+	public synchronized void addMaximumRequests(Piece piece,
+			BitSet blocks) {
 		// The number of pipelined requests and the length of each
 		// requested block (1k..16k) depend on the download speed.
 		if (!canRequestMore())
@@ -211,201 +357,204 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 			int index = piece.getIndex();
 			int offset = piece.getBlockOffset(i);
 			Message m = Message.newBlockRequest(index, offset, length);
-			m.setTimestamp((long) (now + 20 * 1e9));
-			outgoing.add(m);
+			m.setTimestamp(now + REQUEST_TIMEOUT);
+			outgoing_requests.add(m);
 			unfulfilled.add(m);
+			signalOutgoing();
 
 			if (!canRequestMore())
 				return;
 		}
 	}
 
-	public void addBitfield(BitSet pieces, int nbits) {
+	public synchronized void addBitfield(BitSet pieces, int nbits) {
+		num_pieces = nbits;
 		advertised = pieces;
 		if (advertised.cardinality() > 0)
-			outgoing.add(Message.newBitfield(advertised, nbits));
+			enqueue(Message.newBitfield(advertised, nbits));
+		countWanted();
 	}
 
-	public void advertise(BitSet pieces) {
-		advertised.xor(pieces);
-		int start_bit = advertised.nextSetBit(0);
-		for (int i = start_bit; i >= 0; i = advertised.nextSetBit(i + 1)) {
-			outgoing.add(Message.newHavePiece(i));
+	public synchronized void advertise(Collection<Integer> pieces) {
+		// Pieces that became available since the bitfield, or the last
+		// call; those already advertised are skipped.
+		for (int index : pieces) {
+			if (advertised.get(index))
+				continue;
+			advertised.set(index);
+			enqueue(Message.newHavePiece(index));
+			if (available.get(index))
+				num_wanted--;
 		}
-		advertised.or(pieces);
+		updateAmInterested();
+	}
+
+	private void countWanted() {
+		BitSet missing = (BitSet) available.clone();
+		missing.andNot(advertised);
+		num_wanted = missing.cardinality();
+		updateAmInterested();
 	}
 
-	public void setAmInitiator(boolean initiator) {
+	public synchronized void setAmInitiator(boolean initiator) {
 		am_initiator = initiator;
 	}
 
-	public boolean amInitiator() {
+	public synchronized boolean amInitiator() {
 		return am_initiator;
 	}
 
-	public void setAmSnubbed(boolean snubbed) {
+	public synchronized void setAmSnubbed(boolean snubbed) {
 		am_snubbed = snubbed;
 	}
 
-	public boolean amSnubbed() {
+	public synchronized boolean amSnubbed() {
 		// If true, it'll clear on optimistic unchoking.
 		return am_snubbed;
 	}
 
-	public void setIsOptimistic(boolean optimistic) {
+	public synchronized void setIsOptimistic(boolean optimistic) {
 		is_optimistic = optimistic;
 	}
 
-	public boolean isOptimistic() {
+	public synchronized boolean isOptimistic() {
 		return is_optimistic;
 	}
 
-	public void setFormerOptimistic(boolean former) {
+	public synchronized void setFormerOptimistic(boolean former) {
 		former_optimistic = former;
 	}
 
-	public boolean isFormerOptimistic() {
+	public synchronized boolean isFormerOptimistic() {
 		return former_optimistic;
 	}
 
-	public boolean amChoked() {
+	public synchronized boolean amChoked() {
 		return am_choked;
 	}
 
-	public boolean isChoked() {
+	public synchronized boolean isChoked() {
 		return is_choked;
 	}
 
-	public boolean amInterested() {
+	public synchronized boolean amInterested() {
 		return am_interested;
 	}
 
-	public boolean isInterested() {
+	public synchronized boolean isInterested() {
 		return is_interested;
 	}
 
-	public void setUnchokeEndTime(long at) {
+	public synchronized void setUnchokeEndTime(long at) {
 		unchoke_end_time = at;
 	}
 
-	public long getUnchokeEndTime() {
+	public synchronized long getUnchokeEndTime() {
 		return unchoke_end_time;
 	}
 
-	public void updateIsChoked(boolean choke) {
+	public synchronized void updateIsChoked(boolean choke) {
 		if (is_choked == choke)
 			return;
 		is_choked = choke;
 		if (is_choked) {
-			outgoing.add(Message.newChoke());
+			enqueue(Message.newChoke());
 			outgoing_pieces.clear();
-			unprocessed_requests.clear();
+			clearUnprocessedRequests();
 		} else {
-			outgoing.add(Message.newUnchoke());
+			enqueue(Message.newUnchoke());
 		}
 	}
 
-	public void updateAmInterested() {
-		BitSet missing = (BitSet) available.clone();
-		missing.andNot(advertised);
-		boolean be_interested = missing.nextSetBit(0) >= 0;
+	private void updateAmInterested() {
+		// Called whenever num_wanted changes.
+		boolean be_interested = num_wanted > 0;
 		if (am_interested == be_interested)
 			return;
 		am_interested = be_interested;
 		if (am_interested) {
-			outgoing.add(Message.newInterested());
+			enqueue(Message.newInterested());
 		} else {
-			outgoing.add(Message.newNotInterested());
+			enqueue(Message.newNotInterested());
 			removeOutgoingRequests();
 		}
 	}
 
-	public void addPiece(Message m) {
+	public synchronized void addPiece(Message m) {
 		if (m == null)
 			return;
 		if (!m.isPiece())
 			throw new IllegalArgumentException(m.getType());
 
 		outgoing_pieces.add(m);
+		if (m.isPrepared())
+			signalOutgoing();
 	}
 
-	public void addKeepAlive() {
-		outgoing.add(Message.newKeepAlive());
-	}
-
-	private void removeOutgoingPiece(Message m) {
-		Iterator<Message> iter = outgoing_pieces.iterator();
-		while (iter.hasNext()) {
-			if (m.sameBlockRegion(iter.next())) {
-				iter.remove();
-				return;
-			}
-		}
+	public synchronized void addKeepAlive() {
+		enqueue(Message.newKeepAlive());
 	}
 
 	private void removeOutgoingRequests() {
 		unfulfilled.clear();
-		Iterator<Message> iter = outgoing.iterator();
-		while (iter.hasNext()) {
-			if (iter.next().isBlockRequest())
-				iter.remove();
-		}
+		outgoing_requests.clear();
 	}
 
-	public void cancelAvailableBlocks(Collection<Piece> pieces) {
+	public synchronized void cancelAvailableBlocks(
+			Collection<Piece> pieces) {
 		for (Piece piece : pieces) {
 			cancelPendingRequests(piece, piece.getAvailableBlocks());
 		}
 	}
 
-	public void cancelPendingRequests(Piece piece, BitSet blocks) {
+	public synchronized void cancelPendingRequests(Piece piece,
+			BitSet blocks) {
 		// To remove timed out requests, pass null piece and null blocks.
 		// To remove every request of a specific piece, pass null blocks.
 		// To remove specific requests, pass the piece and the blocks.
 
-		long now = System.nanoTime();
-
-		Iterator<Message> iter;
-		iter = unfulfilled.iterator();
-		while (iter.hasNext()) {
-			Message m = iter.next();
-			boolean expired = piece == null && now >= m.getTimestamp();
-			if (expired
-					|| (piece != null && m.getPieceIndex() == piece.getIndex())) {
-				int offset = m.getBlockBegin();
-				int block_index = offset / 1024;
-				if (blocks != null && !blocks.get(block_index))
-					continue;
-				int piece_index = m.getPieceIndex();
-				int length = m.getBlockLength();
-				outgoing.add(Message.newCancel(piece_index, offset, length));
-				iter.remove();
+		if (piece == null) {
+			// Requests are kept in deadline order, so the expired ones are
+			// at the head of the table.
+			long now = System.nanoTime();
+			Message m;
+			while ((m = unfulfilled.peek()) != null && now >= m.getTimestamp()) {
+				cancelRequest(m);
 			}
+			return;
 		}
-		iter = outgoing.iterator();
-		while (iter.hasNext()) {
-			Message m = iter.next();
-			if (!m.isBlockRequest())
+
+		int index = piece.getIndex();
+		if (!unfulfilled.hasBlocks(index))
+			return;
+		BitSet pending = unfulfilled.getBlocks(index);
+		int start_bit = pending.nextSetBit(0);
+		for (int i = start_bit; i >= 0; i = pending.nextSetBit(i + 1)) {
+			if (blocks != null && !blocks.get(i))
 				continue;
-			boolean expired = piece == null && now >= m.getTimestamp();
-			if (expired
-					|| (piece != null && m.getPieceIndex() == piece.getIndex())) {
-				int block_index = m.getBlockBegin() / 1024;
-				if (blocks != null && !blocks.get(block_index))
-					continue;
-				iter.remove();
-			}
+			Message m = unfulfilled.get(index, i * Piece.BLOCK_LENGTH);
+			if (m != null)
+				cancelRequest(m);
 		}
 	}
 
+	private void cancelRequest(Message m) {
+		// A request that hasn't been sent yet is simply dropped.
+		int index = m.getPieceIndex();
+		int offset = m.getBlockBegin();
+		unfulfilled.remove(index, offset);
+		if (outgoing_requests.remove(index, offset) == null)
+			enqueue(Message.newCancel(index, offset, m.getBlockLength()));
+	}
+
 	private void removeUnprocessedRequest(Message m) {
-		Iterator<Message> iter = unprocessed_requests.iterator();
-		while (iter.hasNext()) {
-			if (m.sameBlockRegion(iter.next())) {
-				iter.remove();
-				return;
-			}
-		}
+		Message request = unprocessed_requests.removeRegion(m);
+		if (request != null)
+			request.release();
+	}
+
+	private void clearUnprocessedRequests() {
+		unprocessed_requests.releaseAll();
 	}
 
 	private void receiveIncoming() {
@@ -417,20 +566,34 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 		}
 	}
 
-	private void sendOutgoing(List<Message> messages) {
-		socket.processOutput();
+	private boolean prepareNext(Iterable<Message> messages) {
 		Iterator<Message> iter = messages.iterator();
 		while (iter.hasNext()) {
 			Message m = iter.next();
 			if (!m.isPrepared())
 				continue;
-			if (socket.hasOutputMessage())
-				return;
 			// System.out.printf("sent %s, %d\n", m.getType(), m.getLength());
-			socket.setOutputMessage(m);
-			socket.processOutput();
 			iter.remove();
+			if (m.isPiece())
+				addUploadLatency(System.nanoTime() - m.getTimestamp());
+			else if (m.isBlockRequest()) {
+				// Requests expire, and their round trip is measured, from
+				// the time they are sent. Every timestamp is now plus the
+				// timeout, so moving the request to the end keeps the
+				// unfulfilled requests in deadline order.
+				m.setTimestamp(System.nanoTime() + REQUEST_TIMEOUT);
+				unfulfilled.moveToEnd(m);
+			}
+			socket.addOutputMessage(m);
+			return true;
 		}
+		return false;
+	}
+
+	private void addUploadLatency(long latency) {
+		last_upload_latency = latency;
+		total_upload_latency += latency;
+		num_uploads++;
 	}
 
 	private void processIncoming() {
@@ -439,8 +602,10 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 
 			// System.out.printf("got %s, %d\n", m.getType(), m.getLength());
 
-			if (m.isKeepAlive())
+			if (m.isKeepAlive()) {
+				m.release();
 				continue;
+			}
 
 			switch (m.getID()) {
 			case Message.CHOKE:
@@ -472,9 +637,16 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 				break;
 
 			default:
+				m.release();
 				socket.close();
+				discardIncomingMessages();
 				return;
 			}
+
+			// Requests and pieces are released after they get processed
+			// by the torrent.
+			if (!m.isBlockRequest() && !m.isPiece())
+				m.release();
 		}
 	}
 
@@ -496,32 +668,63 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 
 		// Discard pending pieces because it might not get choked.
 		outgoing_pieces.clear();
-		unprocessed_requests.clear();
+		clearUnprocessedRequests();
 	}
 
 	private void onHave(Message m) {
-		available.set(m.getPieceIndex());
+		int index = m.getPieceIndex();
+		if (available.get(index))
+			return;
+		available.set(index);
+		if (availability != null)
+			availability.increment(index);
+		if (!advertised.get(index)) {
+			num_wanted++;
+			updateAmInterested();
+		}
 	}
 
 	private void onBitfield(Message m) {
-		// TODO if not isValidBitfield close the socket
+		if (!m.isValidBitfield(num_pieces)) {
+			socket.close();
+			discardIncomingMessages();
+			return;
+		}
+		removeAvailability();
 		available = m.toBitSet();
+		if (availability != null)
+			availability.add(available);
+		countWanted();
+	}
+
+	public synchronized void removeAvailability() {
+		// Must be called when the channel is removed.
+		if (availability != null)
+			availability.remove(available);
+		available = new BitSet();
+		num_wanted = 0;
 	}
 
 	private void onRequest(Message m) {
-		if (!is_choked && numIncomingRequests() < MAX_REQUESTS)
-			unprocessed_requests.add(m);
+		if (is_choked || numIncomingRequests() >= MAX_REQUESTS) {
+			m.release();
+			return;
+		}
+		m.setTimestamp(System.nanoTime());
+		// A repeated request replaces the previous one.
+		Message previous = unprocessed_requests.add(m);
+		if (previous != null)
+			previous.release();
 	}
 
 	private void onPiece(Message m) {
-		Iterator<Message> iter = unfulfilled.iterator();
-		while (iter.hasNext()) {
-			Message request = iter.next();
-			if (m.sameBlockRegion(request)) {
-				iter.remove();
-				break;
-			}
-		}
+		Message request = unfulfilled.removeRegion(m);
+		// A request still queued wasn't sent, so it doesn't time the trip;
+		// it's dropped to not be sent after the block arrived.
+		boolean sent = outgoing_requests.removeRegion(m) == null;
+		if (request != null && sent)
+			addRttSample(System.nanoTime() - request.getTimestamp()
+					+ REQUEST_TIMEOUT);
 		// If an unfulfilled request wasn't found, the request probably was
 		// canceled because the block is delayed. We enqueue it for further
 		// processing anyway.
@@ -531,7 +734,7 @@ public final class PeerChannel implements Comparable<PeerChannel> {
 
 	private void onCancel(Message m) {
 		// The request is either already processed and the piece is enqueued,
-		removeOutgoingPiece(m);
+		outgoing_pieces.removeRegion(m);
 		// or unprocessed.
 		removeUnprocessedRequest(m);
 	}
@@ -0,0 +1,19 @@
+package com.ndtorrent.client;
+
+import java.net.InetAddress;
+
+public enum PeerClass {
+	// Peers are classified by their address, so that the rates of peers
+	// on the local network and of peers on the internet can be limited
+	// apart, i.e. to leave the uplink to other hosts.
+	LOCAL, INTERNET;
+
+	public static PeerClass of(InetAddress address) {
+		if (address == null)
+			return INTERNET;
+		if (address.isLoopbackAddress() || address.isSiteLocalAddress()
+				|| address.isLinkLocalAddress())
+			return LOCAL;
+		return INTERNET;
+	}
+}
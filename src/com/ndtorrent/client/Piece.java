@@ -4,6 +4,8 @@ import java.nio.ByteBuffer;
 import java.util.BitSet;
 
 public final class Piece {
+	static final int BLOCK_LENGTH = 1 * 1024;
+
 	private ByteBuffer data;
 
 	private int index;
@@ -15,9 +17,10 @@ public final class Piece {
 	private BitSet available;
 	private BitSet not_requested;
 	private BitSet reserved;
+	private BitSet receiving; // blocks read in place by a socket
 
 	public Piece(int index, int length) {
-		this(index, length, 1 * 1024);
+		this(index, length, BLOCK_LENGTH);
 	}
 
 	public Piece(int index, int piece_length, int block_length) {
@@ -32,6 +35,7 @@ public final class Piece {
 		not_requested = new BitSet(num_blocks);
 		not_requested.set(0, num_blocks, true);
 		reserved = new BitSet(num_blocks);
+		receiving = new BitSet(num_blocks);
 
 		tail_length = piece_length % block_length;
 		if (piece_length != 0 && tail_length == 0)
@@ -50,6 +54,14 @@ public final class Piece {
 		reserved.and(requests);
 	}
 
+	public void restoreAvailableBlocks(BitSet blocks) {
+		// The data of the blocks must have been loaded already.
+		available.or(blocks);
+		if (available.length() > num_blocks)
+			available.clear(num_blocks, available.length());
+		not_requested.andNot(available);
+	}
+
 	public void setBlocksAsReserved(int fromIndex, int toIndex) {
 		reserved.set(fromIndex, toIndex, true);
 	}
@@ -115,6 +127,45 @@ public final class Piece {
 		return offset + length <= data.capacity();
 	}
 
+	private int numBlocksOf(int start, int length) {
+		// The requested length is a multiple of block length.
+		int block_length = getBlockLength(start);
+		int nblocks = length / block_length;
+		if (nblocks * block_length < length)
+			nblocks++;
+		return nblocks;
+	}
+
+	public ByteBuffer reserveBlock(int offset, int length) {
+		// Returns a view of the data where the block can be read into
+		// directly, or null if the region is invalid, already available or
+		// being received by another socket.
+		if (length <= 0 || !validBlockRegion(offset, length))
+			return null;
+
+		int start = getBlockIndex(offset);
+		int end = start + numBlocksOf(start, length);
+		int next = available.nextSetBit(start);
+		if (next >= 0 && next < end)
+			return null;
+		next = receiving.nextSetBit(start);
+		if (next >= 0 && next < end)
+			return null;
+
+		receiving.set(start, end, true);
+		ByteBuffer view = data.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice();
+	}
+
+	public void abortBlock(int offset, int length) {
+		if (!validBlockRegion(offset, length))
+			return;
+		int start = getBlockIndex(offset);
+		receiving.clear(start, start + numBlocksOf(start, length));
+	}
+
 	public void write(Message block) {
 		int length = block.getPayloadLength() - 2 * 4;
 		int offset = block.getBlockBegin();
@@ -122,15 +173,32 @@ public final class Piece {
 			return;
 
 		int start = getBlockIndex(offset);
-		int block_length = getBlockLength(start);
-		int nblocks = block.getBlockLength() / block_length;
-		if (nblocks * block_length < block.getBlockLength())
-			nblocks++;
+		int nblocks = numBlocksOf(start, block.getBlockLength());
+
+		if (block.hasDetachedPayload()) {
+			// The payload has already been read into the reserved region.
+			receiving.clear(start, start + nblocks);
+			available.set(start, start + nblocks, true);
+			not_requested.set(start, start + nblocks, false);
+			return;
+		}
+
+		// A region that is being read in place is left to the socket that
+		// reserved it, otherwise the piece could complete while the socket
+		// still writes to it.
+		int next = receiving.nextSetBit(start);
+		if (next >= 0 && next < start + nblocks)
+			return;
+
 		available.set(start, start + nblocks, true);
 		not_requested.set(start, start + nblocks, false);
 
+		// The block may be backed by a direct buffer, so array() is not used.
+		ByteBuffer src = block.getData().duplicate();
+		src.limit(1 + 2 * 4 + length);
+		src.position(1 + 2 * 4);
 		data.position(offset);
-		data.put(block.getData().array(), 1 + 2 * 4, length);
+		data.put(src);
 	}
 
 }
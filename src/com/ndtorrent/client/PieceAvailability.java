@@ -0,0 +1,180 @@
+package com.ndtorrent.client;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+public final class PieceAvailability {
+	// Counts how many channels have each piece. The counts are updated
+	// when a BITFIELD or a HAVE is received and when a channel is removed,
+	// so that selecting the rarest piece doesn't have to ask every channel.
+	//
+	// Pieces that can be selected (candidates) are linked in buckets by
+	// their count. A pick walks the buckets from the lowest non-empty one
+	// and stops at the first bucket that has a piece of the channel.
+	// The counts are updated by the reactors of the channels, without the
+	// torrent's lock, so the methods are synchronized.
+
+	// Ties within a bucket are broken at random among the first matches.
+	private static final int MAX_TIES = 16;
+
+	private static final int NONE = -1;
+
+	private final int num_pieces;
+	private final int[] counts;
+
+	private final BitSet candidates;
+	private int num_candidates;
+	private final int[] next;
+	private final int[] prev;
+	private int[] heads = new int[8];
+	private int low_bucket = 1; // no candidate below, except count 0
+
+	private final Random random = new Random();
+
+	public PieceAvailability(int num_pieces) {
+		this.num_pieces = num_pieces;
+		counts = new int[num_pieces];
+		candidates = new BitSet(num_pieces);
+		next = new int[num_pieces];
+		prev = new int[num_pieces];
+		Arrays.fill(heads, NONE);
+	}
+
+	public synchronized int getCount(int index) {
+		return counts[index];
+	}
+
+	public synchronized void increment(int index) {
+		if (index < 0 || index >= num_pieces)
+			return;
+		unlink(index);
+		counts[index]++;
+		link(index);
+	}
+
+	public synchronized void decrement(int index) {
+		if (index < 0 || index >= num_pieces || counts[index] == 0)
+			return;
+		unlink(index);
+		counts[index]--;
+		link(index);
+	}
+
+	public synchronized void add(BitSet pieces) {
+		int start_bit = pieces.nextSetBit(0);
+		for (int i = start_bit; i >= 0 && i < num_pieces; i = pieces
+				.nextSetBit(i + 1)) {
+			increment(i);
+		}
+	}
+
+	public synchronized void remove(BitSet pieces) {
+		int start_bit = pieces.nextSetBit(0);
+		for (int i = start_bit; i >= 0 && i < num_pieces; i = pieces
+				.nextSetBit(i + 1)) {
+			decrement(i);
+		}
+	}
+
+	public synchronized void setCandidate(int index, boolean candidate) {
+		if (candidates.get(index) == candidate)
+			return;
+		if (candidate) {
+			candidates.set(index);
+			num_candidates++;
+			link(index);
+		} else {
+			unlink(index);
+			candidates.clear(index);
+			num_candidates--;
+		}
+	}
+
+	public synchronized void setCandidates(BitSet pieces) {
+		// Replaces every candidate; it's linear in the number of pieces.
+		for (int i = 0; i < num_pieces; i++) {
+			setCandidate(i, pieces.get(i));
+		}
+	}
+
+	public synchronized int selectRarest(BitSet available) {
+		// Returns the candidate with the lowest non-zero count among the
+		// available pieces, or -1.
+		// A channel with few pieces is cheaper to scan directly than the
+		// buckets, most of which it wouldn't match.
+		if (available.cardinality() < num_candidates / 8)
+			return scanRarest(available);
+
+		for (int c = low_bucket; c < heads.length; c++) {
+			if (heads[c] == NONE) {
+				if (c == low_bucket)
+					low_bucket++;
+				continue;
+			}
+			int index = NONE;
+			int nmatch = 0;
+			for (int i = heads[c]; i != NONE; i = next[i]) {
+				if (!available.get(i))
+					continue;
+				// Reservoir sampling, each match with probability 1/n.
+				if (random.nextInt(++nmatch) == 0)
+					index = i;
+				if (nmatch == MAX_TIES)
+					break;
+			}
+			if (index != NONE)
+				return index;
+		}
+		return NONE;
+	}
+
+	private int scanRarest(BitSet available) {
+		int min = Integer.MAX_VALUE;
+		int index = NONE;
+		int nmatch = 0;
+		int start_bit = available.nextSetBit(0);
+		for (int i = start_bit; i >= 0 && i < num_pieces; i = available
+				.nextSetBit(i + 1)) {
+			if (!candidates.get(i) || counts[i] == 0 || counts[i] > min)
+				continue;
+			nmatch = counts[i] == min ? nmatch + 1 : 1;
+			min = counts[i];
+			if (random.nextInt(nmatch) == 0)
+				index = i;
+		}
+		return index;
+	}
+
+	private void link(int index) {
+		if (!candidates.get(index))
+			return;
+		int c = counts[index];
+		if (c >= heads.length) {
+			int length = heads.length;
+			heads = Arrays.copyOf(heads, Math.max(2 * length, c + 1));
+			Arrays.fill(heads, length, heads.length, NONE);
+		}
+		int head = heads[c];
+		next[index] = head;
+		prev[index] = NONE;
+		if (head != NONE)
+			prev[head] = index;
+		heads[c] = index;
+		if (c > 0 && c < low_bucket)
+			low_bucket = c;
+	}
+
+	private void unlink(int index) {
+		if (!candidates.get(index))
+			return;
+		int c = counts[index];
+		if (prev[index] != NONE)
+			next[prev[index]] = next[index];
+		else
+			heads[c] = next[index];
+		if (next[index] != NONE)
+			prev[next[index]] = prev[index];
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.ndtorrent.client;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class PieceVerifier {
+	// Completed pieces are hashed by a pool of worker threads, shared by
+	// all torrents and sized to the number of cores. The results are
+	// queued, and the event loop takes them with pollPassed/pollFailed,
+	// so the network thread never hashes.
+
+	private static final ExecutorService workers = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "HASH-THREAD-"
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+
+	private static final ThreadLocal<MessageDigest> sha1 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final byte[] sha1_list;
+
+	private final Queue<Piece> passed = new ConcurrentLinkedQueue<Piece>();
+	private final Queue<Piece> failed = new ConcurrentLinkedQueue<Piece>();
+
+	private final AtomicInteger queue_depth = new AtomicInteger();
+	private final AtomicLong num_verified = new AtomicLong();
+	private final AtomicLong total_latency = new AtomicLong();
+	private volatile long last_latency;
+
+	public PieceVerifier(byte[] sha1_list) {
+		this.sha1_list = sha1_list;
+	}
+
+	public static boolean validHash(ByteBuffer data, byte[] sha1_list,
+			int index) {
+		// Hashes the remaining bytes of data, on the calling thread.
+		MessageDigest md = sha1.get();
+		md.update(data);
+		ByteBuffer expected = ByteBuffer.wrap(sha1_list, index * 20, 20);
+		return expected.equals(ByteBuffer.wrap(md.digest()));
+	}
+
+	static void execute(Runnable task) {
+		// Runs other hashing work, i.e. a recheck, on the shared pool.
+		workers.execute(task);
+	}
+
+	public void submit(final Piece piece) {
+		// The piece must not be modified until its result is taken.
+		final long submitted_at = System.nanoTime();
+		queue_depth.incrementAndGet();
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer data = piece.getData().duplicate();
+				data.rewind();
+				boolean valid = validHash(data, sha1_list, piece.getIndex());
+
+				long latency = System.nanoTime() - submitted_at;
+				last_latency = latency;
+				total_latency.addAndGet(latency);
+				num_verified.incrementAndGet();
+				queue_depth.decrementAndGet();
+
+				if (valid)
+					passed.add(piece);
+				else
+					failed.add(piece);
+			}
+		});
+	}
+
+	public Piece pollPassed() {
+		// Returns null if no verified piece exists.
+		return passed.poll();
+	}
+
+	public Piece pollFailed() {
+		return failed.poll();
+	}
+
+	public int queueDepth() {
+		// The number of pieces that are waiting or being hashed.
+		return queue_depth.get();
+	}
+
+	public long numVerified() {
+		return num_verified.get();
+	}
+
+	public double averageLatency() {
+		// Seconds from submission to result, including the time in queue.
+		long n = num_verified.get();
+		return n == 0 ? 0 : total_latency.get() / 1e9 / n;
+	}
+
+	public double lastLatency() {
+		// Seconds, of the most recent result.
+		return last_latency / 1e9;
+	}
+
+}
@@ -1,8 +1,159 @@
 package com.ndtorrent.client;
 
-public class RateLimiter {
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-	// Singleton
-	// Token bucket algorithm
+public final class RateLimiter {
+	// Token bucket algorithm; a token is a byte.
+	// Buckets form a hierarchy, i.e. the client, each torrent below it and
+	// the sockets of the torrent as users. Bytes are granted only if every
+	// bucket up to the roots has them.
+	// A bucket may have more than one parent, i.e. the bucket of a peer
+	// class within a torrent is below both the torrent and the class of
+	// the client. Parents must not have a common ancestor, which would be
+	// charged twice.
+	// The users of a bucket are the sockets below it, at any depth.
+	// Buckets are refilled lazily by the reactors that ask for tokens, from
+	// the elapsed time, so there is neither a refill thread nor a lock;
+	// tokens are taken once per read or write, with a CAS.
+
+	public static final long UNLIMITED = 0;
+
+	// The burst size; also the time a refill must cover to be worth it.
+	static final double BURST_SECONDS = 0.25;
+
+	// A grant smaller than this isn't worth a syscall.
+	static final int MIN_GRANT = 1024;
+
+	private final RateLimiter[] parents;
+	private volatile long rate = UNLIMITED; // bytes per second
+	private final AtomicLong tokens = new AtomicLong();
+	private final AtomicLong refilled_at = new AtomicLong(System.nanoTime());
+	private final AtomicInteger num_users = new AtomicInteger();
+
+	public RateLimiter(RateLimiter... parents) {
+		this.parents = parents.clone();
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public void setRate(long bytes_per_sec) {
+		if (bytes_per_sec < 0)
+			throw new IllegalArgumentException("bytes_per_sec: "
+					+ bytes_per_sec);
+		rate = bytes_per_sec;
+		refilled_at.set(System.nanoTime());
+		tokens.set(Math.min(tokens.get(), burst(bytes_per_sec)));
+	}
+
+	public void addUser() {
+		num_users.incrementAndGet();
+		for (RateLimiter parent : parents) {
+			parent.addUser();
+		}
+	}
+
+	public void removeUser() {
+		num_users.decrementAndGet();
+		for (RateLimiter parent : parents) {
+			parent.removeUser();
+		}
+	}
+
+	public int acquire(int wanted) {
+		// Returns how many bytes may be transferred, from 0 to wanted.
+		// Bytes that don't get transferred should be given back.
+		int n = take(wanted);
+		for (int i = 0; i < parents.length && n > 0; i++) {
+			int granted = parents[i].acquire(n);
+			if (granted < n) {
+				// The buckets that granted more take the rest back.
+				give(n - granted);
+				for (int j = 0; j < i; j++) {
+					parents[j].release(n - granted);
+				}
+				n = granted;
+			}
+		}
+		return n;
+	}
+
+	public void release(int unused) {
+		if (unused <= 0)
+			return;
+		give(unused);
+		for (RateLimiter parent : parents) {
+			parent.release(unused);
+		}
+	}
+
+	public long millisUntilTokens() {
+		// An estimate of when acquire can grant a few bytes again.
+		long millis = 0;
+		long r = rate;
+		if (r != UNLIMITED) {
+			refill(r);
+			long missing = MIN_GRANT - tokens.get();
+			if (missing > 0)
+				millis = (missing * 1000 + r - 1) / r;
+		}
+		for (RateLimiter parent : parents) {
+			millis = Math.max(millis, parent.millisUntilTokens());
+		}
+		return millis;
+	}
+
+	private static long burst(long rate) {
+		return Math.max(MIN_GRANT, (long) (rate * BURST_SECONDS));
+	}
+
+	private int take(int wanted) {
+		long r = rate;
+		if (r == UNLIMITED || wanted <= 0)
+			return Math.max(0, wanted);
+		refill(r);
+		// Each user gets no more than its share of a burst at a time,
+		// and gives back what it doesn't use, so the quota is spread
+		// among the active users.
+		long share = Math.max(MIN_GRANT, burst(r)
+				/ Math.max(1, num_users.get()));
+		while (true) {
+			long t = tokens.get();
+			if (t <= 0 || t < Math.min(wanted, MIN_GRANT))
+				return 0;
+			long n = Math.min(Math.min(wanted, t), share);
+			if (tokens.compareAndSet(t, t - n))
+				return (int) n;
+		}
+	}
+
+	private void give(int n) {
+		long r = rate;
+		if (r == UNLIMITED)
+			return;
+		long max = burst(r);
+		while (true) {
+			long t = tokens.get();
+			long value = Math.min(max, t + n);
+			if (tokens.compareAndSet(t, value))
+				return;
+		}
+	}
+
+	private void refill(long r) {
+		long now = System.nanoTime();
+		long last = refilled_at.get();
+		long n = (long) ((now - last) / 1e9 * r);
+		if (n <= 0)
+			return;
+		// The fraction of a byte that wasn't added is kept for the next
+		// refill.
+		long at = Math.min(now, last + (long) (n * 1e9 / r));
+		if (!refilled_at.compareAndSet(last, at))
+			return; // refilled by another thread
+		give((int) Math.min(n, Integer.MAX_VALUE));
+	}
 
 }
@@ -0,0 +1,134 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public final class Reactor extends Thread {
+	// A selector thread that performs the socket I/O of the channels
+	// registered with it. Channels of one or many torrents can share a
+	// reactor; the attachment of each key is the Handler that gets called
+	// when the key is selected.
+	// Other threads post tasks (i.e. registrations) with execute().
+	// Timers run on the reactor thread as well, so periodic work of
+	// torrents is multiplexed with the I/O of the channels.
+
+	static final long TICK_MILLIS = 10;
+
+	public interface Handler {
+		void onRegistered(SelectionKey key);
+
+		void onSelected(SelectionKey key);
+	}
+
+	private volatile boolean stop_requested;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final TimerWheel timers = new TimerWheel(TICK_MILLIS);
+
+	public Reactor(String name) throws IOException {
+		super(name);
+		setDaemon(true);
+		selector = Selector.open();
+	}
+
+	public void close() {
+		stop_requested = true;
+		selector.wakeup();
+	}
+
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	public void register(final BTSocket socket, final int ops,
+			final Handler handler) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handler.onRegistered(socket.register(selector, ops, handler));
+				} catch (ClosedChannelException e) {
+				} catch (CancelledKeyException e) {
+					// The socket was registered before, and its key hasn't
+					// been removed yet.
+					socket.close();
+				}
+			}
+		});
+	}
+
+	public TimerWheel.Timer schedule(Runnable task, long delay_millis) {
+		// Must be called by the reactor thread, i.e. by a task or a timer.
+		if (Thread.currentThread() != this)
+			throw new IllegalStateException("not in reactor thread");
+		return timers.schedule(task, delay_millis);
+	}
+
+	public boolean inReactorThread() {
+		return Thread.currentThread() == this;
+	}
+
+	public int numKeys() {
+		return selector.keys().size();
+	}
+
+	@Override
+	public void run() {
+		while (!stop_requested) {
+			try {
+				// Registrations run after select, when keys that were
+				// canceled have been removed from the selector.
+				long timeout = timers.millisUntilNext();
+				if (timeout == 0)
+					selector.selectNow();
+				else
+					selector.select(timeout < 0 ? 0 : timeout);
+				runTasks();
+				timers.advance();
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (!key.isValid())
+						continue;
+					((Handler) key.attachment()).onSelected(key);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (RuntimeException e) {
+				// A failing handler must not stop the other channels.
+				e.printStackTrace();
+			}
+		}
+
+		// Tasks that were posted before the stop, i.e. closing sockets.
+		runTasks();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void runTasks() {
+		while (true) {
+			Runnable task = tasks.poll();
+			if (task == null)
+				return;
+			task.run();
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+
+public final class ReactorPool {
+	// A fixed set of reactor threads that the channels of every torrent
+	// are distributed across, round robin.
+
+	private final Reactor[] reactors;
+	private int next;
+
+	public ReactorPool(int nthreads) throws IOException {
+		if (nthreads <= 0)
+			throw new IllegalArgumentException("nthreads: " + nthreads);
+
+		reactors = new Reactor[nthreads];
+		for (int i = 0; i < nthreads; i++) {
+			reactors[i] = new Reactor("REACTOR-THREAD-" + (i + 1));
+			reactors[i].start();
+		}
+	}
+
+	public static int defaultSize() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	public int size() {
+		return reactors.length;
+	}
+
+	public synchronized Reactor next() {
+		Reactor reactor = reactors[next];
+		next = (next + 1) % reactors.length;
+		return reactor;
+	}
+
+	public void close() {
+		for (Reactor reactor : reactors) {
+			reactor.close();
+		}
+		for (Reactor reactor : reactors) {
+			try {
+				reactor.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
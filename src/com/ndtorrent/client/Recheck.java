@@ -0,0 +1,179 @@
+package com.ndtorrent.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ndtorrent.client.storage.Storage;
+
+public final class Recheck {
+	// Verifies existing data against the piece hashes. A single thread
+	// reads the torrent sequentially, in ranges of consecutive pieces of
+	// about CHUNK_SIZE bytes, which may span multiple files. Each range is
+	// hashed on the shared pool of the PieceVerifier while the next one is
+	// read. At most MAX_BUFFERS ranges are in flight, which bounds both the
+	// memory of a check and its share of the pool.
+	// Results are queued, so the event loop can use the verified pieces
+	// before the whole check finishes.
+
+	static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	static final int MAX_BUFFERS = 4;
+
+	private final Storage storage;
+	private final byte[] sha1_list;
+	private final int piece_length;
+	private final long total_length;
+	private final int chunk_pieces;
+
+	private Thread reader;
+	private volatile boolean is_cancelled;
+
+	private final Queue<Integer> passed = new ConcurrentLinkedQueue<Integer>();
+	private final Queue<Integer> failed = new ConcurrentLinkedQueue<Integer>();
+	private final AtomicInteger num_checked = new AtomicInteger();
+	private int num_pieces;
+
+	// Buffers are allocated as needed, up to MAX_BUFFERS, and returned
+	// here when their range is hashed.
+	private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(
+			MAX_BUFFERS);
+	private int num_buffers; // used by the reader only
+
+	public Recheck(Storage storage, byte[] sha1_list, int piece_length) {
+		this.storage = storage;
+		this.sha1_list = sha1_list;
+		this.piece_length = piece_length;
+		total_length = storage.getTotalLength();
+		chunk_pieces = Math.max(1, CHUNK_SIZE / piece_length);
+	}
+
+	public void start(BitSet pieces) {
+		// Pieces that are not set in the bit set are not checked. The bit
+		// set is copied, since the caller updates it with the results.
+		num_pieces = pieces.cardinality();
+		final BitSet checking = (BitSet) pieces.clone();
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					readRanges(checking);
+				} catch (InterruptedException e) {
+					// Cancelled.
+				}
+			}
+		}, "RECHECK-THREAD");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public void cancel() {
+		is_cancelled = true;
+		if (reader != null)
+			reader.interrupt();
+	}
+
+	public Integer pollPassed() {
+		// Returns null if no verified piece exists.
+		return passed.poll();
+	}
+
+	public Integer pollFailed() {
+		return failed.poll();
+	}
+
+	public int numPieces() {
+		return num_pieces;
+	}
+
+	public int numChecked() {
+		return num_checked.get();
+	}
+
+	private void readRanges(BitSet pieces) throws InterruptedException {
+		int count = sha1_list.length / 20;
+		for (int from = 0; from < count && !is_cancelled; from += chunk_pieces) {
+			int to = Math.min(from + chunk_pieces, count);
+			int next = pieces.nextSetBit(from);
+			if (next < 0)
+				return;
+			if (next >= to)
+				continue;
+			ByteBuffer data = takeBuffer();
+			read(data, next, to);
+			submit(pieces, data, next, to);
+		}
+	}
+
+	private ByteBuffer takeBuffer() throws InterruptedException {
+		if (num_buffers < MAX_BUFFERS) {
+			ByteBuffer data = buffers.poll();
+			if (data != null)
+				return data;
+			num_buffers++;
+			return ByteBuffer.allocate(chunk_pieces * piece_length);
+		}
+		return buffers.take();
+	}
+
+	private void read(ByteBuffer data, int from, int to) {
+		long start = (long) from * piece_length;
+		long end = Math.min((long) to * piece_length, total_length);
+		data.clear();
+		data.limit((int) (end - start));
+		try {
+			storage.read(data, start);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		data.flip();
+	}
+
+	private void submit(final BitSet pieces, final ByteBuffer data,
+			final int from, final int to) {
+		PieceVerifier.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					check(pieces, data, from, to);
+				} finally {
+					buffers.offer(data);
+				}
+			}
+		});
+	}
+
+	private void check(BitSet pieces, ByteBuffer data, int from, int to) {
+		// Data holds what could be read of the range; pieces beyond it
+		// fail.
+		long start = (long) from * piece_length;
+		long end = Math.min((long) to * piece_length, total_length);
+		int length = data.limit();
+
+		for (int i = from; i < to; i++) {
+			if (is_cancelled)
+				return;
+			if (!pieces.get(i))
+				continue;
+			int offset = (i - from) * piece_length;
+			int piece_end = (int) Math.min(offset + piece_length, end - start);
+			boolean valid = false;
+			if (piece_end <= length) {
+				ByteBuffer piece = data.duplicate();
+				piece.limit(piece_end);
+				piece.position(offset);
+				valid = PieceVerifier.validHash(piece, sha1_list, i);
+			}
+			if (valid)
+				passed.add(i);
+			else
+				failed.add(i);
+			num_checked.incrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.ndtorrent.client;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class RequestTable implements Iterable<Message> {
+	// Block messages (requests and pieces) keyed by (piece, begin), in the
+	// order they were added. Lookup and removal don't scan the table, and
+	// the outstanding blocks of each piece are kept as a bitmap so that
+	// pending requests of a piece can be found without a full scan.
+
+	private final LinkedHashMap<Long, Message> messages = new LinkedHashMap<Long, Message>();
+	private final Map<Integer, BitSet> blocks = new HashMap<Integer, BitSet>();
+
+	static long keyOf(int index, int begin) {
+		return ((long) index << 32) | (begin & 0xFFFFFFFFL);
+	}
+
+	private static long keyOf(Message m) {
+		return keyOf(m.getPieceIndex(), m.getBlockBegin());
+	}
+
+	public int size() {
+		return messages.size();
+	}
+
+	public boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	public Message add(Message m) {
+		// A message with the same begin replaces the previous one, which is
+		// returned. The new message goes to the end of the table.
+		Message previous = remove(m.getPieceIndex(), m.getBlockBegin());
+		messages.put(keyOf(m), m);
+		setBlocks(m, true);
+		return previous;
+	}
+
+	public void moveToEnd(Message m) {
+		// Keeps the table in timestamp order when the message gets a later
+		// timestamp. Does nothing if the message isn't in the table.
+		Long key = keyOf(m);
+		if (messages.get(key) != m)
+			return;
+		messages.remove(key);
+		messages.put(key, m);
+	}
+
+	public Message get(int index, int begin) {
+		return messages.get(keyOf(index, begin));
+	}
+
+	public Message peek() {
+		// Returns the oldest message, or null if the table is empty.
+		if (messages.isEmpty())
+			return null;
+		return messages.values().iterator().next();
+	}
+
+	public Message poll() {
+		Message m = peek();
+		if (m != null)
+			remove(m.getPieceIndex(), m.getBlockBegin());
+		return m;
+	}
+
+	public Message remove(int index, int begin) {
+		Message m = messages.remove(keyOf(index, begin));
+		if (m != null)
+			setBlocks(m, false);
+		return m;
+	}
+
+	public Message removeRegion(Message region) {
+		// Removes the message only if it covers exactly the same region.
+		Message m = get(region.getPieceIndex(), region.getBlockBegin());
+		if (m == null || !m.sameBlockRegion(region))
+			return null;
+		return remove(m.getPieceIndex(), m.getBlockBegin());
+	}
+
+	public BitSet getBlocks(int index) {
+		// Returns a copy of the blocks covered by the messages of the piece.
+		BitSet set = blocks.get(index);
+		return set == null ? new BitSet() : (BitSet) set.clone();
+	}
+
+	public boolean hasBlocks(int index) {
+		return blocks.containsKey(index);
+	}
+
+	public void clear() {
+		messages.clear();
+		blocks.clear();
+	}
+
+	public void releaseAll() {
+		for (Message m : messages.values()) {
+			m.release();
+		}
+		clear();
+	}
+
+	@Override
+	public Iterator<Message> iterator() {
+		final Iterator<Message> iter = messages.values().iterator();
+		return new Iterator<Message>() {
+			private Message last;
+
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public Message next() {
+				return last = iter.next();
+			}
+
+			@Override
+			public void remove() {
+				iter.remove();
+				setBlocks(last, false);
+			}
+		};
+	}
+
+	private void setBlocks(Message m, boolean value) {
+		int index = m.getPieceIndex();
+		int start = m.getBlockBegin() / Piece.BLOCK_LENGTH;
+		int end = (m.getBlockBegin() + m.getBlockLength() + Piece.BLOCK_LENGTH - 1)
+				/ Piece.BLOCK_LENGTH;
+		BitSet set = blocks.get(index);
+		if (value) {
+			if (set == null) {
+				set = new BitSet();
+				blocks.put(index, set);
+			}
+			set.set(start, Math.max(start + 1, end));
+		} else if (set != null) {
+			set.clear(start, Math.max(start + 1, end));
+			if (set.isEmpty())
+				blocks.remove(index);
+		}
+	}
+
+}
@@ -1,9 +1,15 @@
 package com.ndtorrent.client;
 
 public final class RollingTotal {
+	// The buckets are a ring; the head is the current bucket and the ones
+	// that follow are older. Rolling moves the head onto the oldest bucket,
+	// so it takes constant time regardless of the number of buckets.
 
-	private double[] buckets;
+	private final double[] buckets;
+	private double[] ordered; // reused by array()
+	private int head;
 	private double total;
+	private int nrolls; // since total was summed up
 
 	public RollingTotal(int nbuckets) {
 		if (nbuckets < 1)
@@ -14,20 +20,26 @@ public final class RollingTotal {
 	}
 
 	public void add(double amount) {
-		buckets[0] += amount;
+		buckets[head] += amount;
 		total += amount;
 	}
 
 	public void roll() {
 		// Roll after you have queried the total.
 
-		total -= buckets[buckets.length - 1];
+		head = (head == 0 ? buckets.length : head) - 1;
+		total -= buckets[head];
+		buckets[head] = 0;
 
-		for (int i = buckets.length - 1; i >= 1; i--) {
-			buckets[i] = buckets[i - 1];
+		// Once per rotation the total is summed up again, so that rounding
+		// errors of the subtractions don't accumulate.
+		if (++nrolls == buckets.length) {
+			nrolls = 0;
+			total = 0;
+			for (double amount : buckets) {
+				total += amount;
+			}
 		}
-
-		buckets[0] = 0;
 	}
 
 	public double total() {
@@ -38,8 +50,24 @@ public final class RollingTotal {
 		return total / buckets.length;
 	}
 
+	public int size() {
+		return buckets.length;
+	}
+
+	public double get(int i) {
+		// The current bucket is 0, the oldest is size() - 1.
+		int index = head + i;
+		return buckets[index < buckets.length ? index : index - buckets.length];
+	}
+
 	public double[] array() {
-		return buckets;
+		// Current bucket first. The array is reused by subsequent calls.
+		if (ordered == null)
+			ordered = new double[buckets.length];
+		int n = buckets.length - head;
+		System.arraycopy(buckets, head, ordered, 0, n);
+		System.arraycopy(buckets, 0, ordered, n, head);
+		return ordered;
 	}
 
 }
@@ -0,0 +1,206 @@
+package com.ndtorrent.client;
+
+public final class TimerWheel {
+	// A hierarchical hashed timing wheel. The first level has a slot per
+	// tick; each next level has a slot per rotation of the previous one.
+	// Timers are placed by their deadline, so scheduling and canceling are
+	// O(1). When the first level completes a rotation, the due slot of the
+	// next level is cascaded down, so timers are moved at most once per
+	// level and expire in O(1).
+	// It's not thread safe; it's owned by a reactor thread.
+
+	static final int ROOT_BITS = 8;
+	static final int LEVEL_BITS = 6;
+	static final int NUM_LEVELS = 4;
+
+	private static final int NONE = -1;
+	private static final int FIRING = -2; // detached from its slot, expired
+
+	public static final class Timer {
+		private Runnable task;
+		private long deadline; // tick
+		private int level = NONE;
+		private int slot;
+		private Timer prev;
+		private Timer next;
+		private TimerWheel wheel;
+
+		public boolean isPending() {
+			return level != NONE;
+		}
+
+		public void cancel() {
+			if (level >= 0) {
+				wheel.unlink(this);
+			} else if (level == FIRING) {
+				// It's skipped when its slot is run.
+				level = NONE;
+				wheel.size--;
+			}
+		}
+	}
+
+	private final long tick_nanos;
+	private final Timer[][] levels = new Timer[NUM_LEVELS][];
+	private final long start = System.nanoTime();
+	private long next_tick; // the next tick to run
+	private int size;
+
+	public TimerWheel(long tick_millis) {
+		if (tick_millis <= 0)
+			throw new IllegalArgumentException("tick_millis: " + tick_millis);
+
+		tick_nanos = tick_millis * 1000000;
+		levels[0] = new Timer[1 << ROOT_BITS];
+		for (int i = 1; i < NUM_LEVELS; i++) {
+			levels[i] = new Timer[1 << LEVEL_BITS];
+		}
+	}
+
+	private static int shiftOf(int level) {
+		return level == 0 ? 0 : ROOT_BITS + (level - 1) * LEVEL_BITS;
+	}
+
+	private static long maxSpan() {
+		return 1L << shiftOf(NUM_LEVELS);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Timer schedule(Runnable task, long delay_millis) {
+		Timer timer = new Timer();
+		timer.task = task;
+		timer.wheel = this;
+		long now = System.nanoTime() - start;
+		long deadline = (now + Math.max(0, delay_millis) * 1000000
+				+ tick_nanos - 1) / tick_nanos;
+		timer.deadline = Math.max(deadline, next_tick);
+		link(timer);
+		return timer;
+	}
+
+	public long millisUntilNext() {
+		// Returns the time until the next non-empty slot of the first
+		// level, or until its rotation completes, or -1 if there are no
+		// timers.
+		if (size == 0)
+			return -1;
+		Timer[] root = levels[0];
+		int mask = root.length - 1;
+		long tick = next_tick;
+		do {
+			if (root[(int) (tick & mask)] != null)
+				break;
+			tick++;
+		} while ((tick & mask) != 0);
+		long nanos = tick * tick_nanos - (System.nanoTime() - start);
+		return Math.max(0, (nanos + 999999) / 1000000);
+	}
+
+	public int advance() {
+		// Runs the tasks of the expired timers; returns how many ran.
+		long now_tick = (System.nanoTime() - start) / tick_nanos;
+		int nfired = 0;
+		while (next_tick <= now_tick) {
+			if (size == 0) {
+				next_tick = now_tick + 1;
+				break;
+			}
+			int index = (int) (next_tick & (levels[0].length - 1));
+			if (index == 0) {
+				for (int level = 1; level < NUM_LEVELS; level++) {
+					if (cascade(level) != 0)
+						break;
+				}
+			}
+			nfired += runSlot(index, next_tick++);
+		}
+		return nfired;
+	}
+
+	private int cascade(int level) {
+		// Moves the timers of the level's due slot to lower levels.
+		Timer[] slots = levels[level];
+		int index = (int) ((next_tick >> shiftOf(level)) & (slots.length - 1));
+		Timer timer = slots[index];
+		slots[index] = null;
+		while (timer != null) {
+			Timer next = timer.next;
+			size--;
+			link(timer);
+			timer = next;
+		}
+		return index;
+	}
+
+	private int runSlot(int index, long tick) {
+		// The slot is detached first, since tasks may schedule timers
+		// into it, or cancel the ones that follow.
+		Timer timer = levels[0][index];
+		levels[0][index] = null;
+		for (Timer t = timer; t != null; t = t.next) {
+			t.level = FIRING;
+		}
+		int nfired = 0;
+		while (timer != null) {
+			Timer next = timer.next;
+			timer.prev = null;
+			timer.next = null;
+			if (timer.level == FIRING && timer.deadline > tick) {
+				// Beyond the reach of the wheel when it was scheduled.
+				timer.level = NONE;
+				size--;
+				link(timer);
+			} else if (timer.level == FIRING) {
+				timer.level = NONE;
+				size--;
+				nfired++;
+				timer.task.run();
+			}
+			timer = next;
+		}
+		return nfired;
+	}
+
+	private void link(Timer timer) {
+		long at = Math.max(timer.deadline, next_tick);
+		if (at - next_tick >= maxSpan()) {
+			// It gets cascaded to the top level again, until it's within
+			// reach.
+			at = next_tick + maxSpan() - 1;
+		}
+		long span = at - next_tick;
+		int level = 0;
+		while (level + 1 < NUM_LEVELS && span >= 1L << shiftOf(level + 1)) {
+			level++;
+		}
+		Timer[] slots = levels[level];
+		int slot = (int) ((at >> shiftOf(level)) & (slots.length - 1));
+		Timer head = slots[slot];
+		timer.level = level;
+		timer.slot = slot;
+		timer.prev = null;
+		timer.next = head;
+		if (head != null)
+			head.prev = timer;
+		slots[slot] = timer;
+		size++;
+	}
+
+	private void unlink(Timer timer) {
+		Timer[] slots = levels[timer.level];
+		if (timer.prev != null)
+			timer.prev.next = timer.next;
+		else
+			slots[timer.slot] = timer.next;
+		if (timer.next != null)
+			timer.next.prev = timer.prev;
+		timer.level = NONE;
+		timer.prev = null;
+		timer.next = null;
+		size--;
+	}
+
+}
@@ -2,47 +2,87 @@ package com.ndtorrent.client;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public final class Torrent {
-	private MessageDigest sha1;
+import com.ndtorrent.client.storage.ReadCache;
+import com.ndtorrent.client.storage.ResumeData;
+import com.ndtorrent.client.storage.Storage;
+import com.ndtorrent.client.storage.WriteCache;
+
+public final class Torrent implements BlockDestination, BlockSource {
+	// Longer requests are discarded; a block is allocated for each.
+	static final int MAX_BLOCK_LENGTH = 128 * 1024;
 
 	private String name;
 	private int piece_length;
 	private int tail_length;
 	private long total_length;
 	private String parent_path;
+	private String resume_path;
 	private BTFile[] files;
+	private Storage storage;
+	private boolean memory_mapped;
 
 	private int num_pieces;
 	private BitSet available;
+	private List<Integer> newly_available = new ArrayList<Integer>();
 	private BitSet unregistered;
 	// private BitSet rejected
 	// private BitSet skip // pieces contained fully in skipped files
 	private byte[] sha1_list;
 
+	// Sockets reserve blocks of partial pieces from reactor threads, so the
+	// methods that change the map or write blocks are synchronized.
 	private Map<Integer, Piece> partial = new HashMap<Integer, Piece>();
 
+	// How many channels have each piece; unregistered pieces are the
+	// candidates for rarest first selection.
+	private PieceAvailability availability;
+
+	// Completed pieces are hashed off the event loop.
+	private PieceVerifier verifier;
+
+	// Verified pieces wait in the cache until the writer flushes them.
+	// Saved pieces become available by the event loop.
+	private WriteCache write_cache;
+	private long write_cache_size = WriteCache.DEFAULT_BUDGET;
+	private AtomicBoolean flush_scheduled = new AtomicBoolean();
+
+	// Whole pieces read ahead for uploading; either shared by the torrents
+	// of a client, or of this torrent only.
+	private ReadCache read_cache;
+	private long read_cache_size = ReadCache.DEFAULT_CAPACITY;
+
+	// Existing data being verified in the background. Pieces that are
+	// checked are neither available nor unregistered.
+	private Recheck recheck;
+	private BitSet checking = new BitSet();
+
 	private ExecutorService reader;
 	private ExecutorService writer;
 
-	public Torrent(MetaInfo meta, String storage_location) {
+	// Blocks are sent with FileChannel.transferTo by the socket, instead
+	// of being read into messages.
+	private boolean use_file_transfer;
 
-		try {
-			sha1 = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-		}
+	public Torrent(MetaInfo meta, String storage_location) {
 
 		sha1_list = meta.getPieces();
 		num_pieces = sha1_list.length / 20;
+		verifier = new PieceVerifier(sha1_list);
 
 		available = new BitSet(num_pieces);
 		// available.set(0, num_pieces); // test
@@ -51,7 +91,12 @@ public final class Torrent {
 		unregistered.set(0, num_pieces);
 		unregistered.andNot(available);
 
+		availability = new PieceAvailability(num_pieces);
+		availability.setCandidates(unregistered);
+
 		name = meta.getName();
+		resume_path = storage_location + '/'
+				+ ResumeData.fileName(meta.getInfoHash());
 
 		parent_path = storage_location;
 		if (meta.areMultipleFiles()) {
@@ -72,27 +117,228 @@ public final class Torrent {
 
 	}
 
+	public void setWriteCacheSize(long bytes) {
+		// Must be set before open().
+		write_cache_size = bytes;
+	}
+
+	public void setReadCacheSize(long bytes) {
+		// Must be set before open(). Zero disables the read-ahead.
+		// Ignored if a shared cache is set.
+		read_cache_size = bytes;
+	}
+
+	public void setReadCache(ReadCache cache) {
+		// Must be set before open(). The cache may be shared with other
+		// torrents; the pieces of this torrent are removed on close().
+		read_cache = cache;
+	}
+
+	public void setMemoryMapped(boolean enabled) {
+		// Selects the storage engine; it must be set before open().
+		memory_mapped = enabled;
+	}
+
 	public void open() throws IOException {
-		for (BTFile f : files) {
-			f.createFileAndPath(parent_path);
-		}
+		storage = Storage.create(files, memory_mapped);
+		storage.open(parent_path);
+
+		reader = newIdleExecutor();
+		writer = newIdleExecutor();
+		storage.setFlushExecutor(writer);
+		write_cache = new WriteCache(storage, write_cache_size);
+		if (read_cache == null)
+			read_cache = new ReadCache(read_cache_size);
+
+		// Without valid resume data, existing files have to be checked.
+		ResumeData resume = ResumeData.load(resume_path);
+		if (resume != null && resume.isValidFor(num_pieces, files))
+			restore(resume);
+		else if (storage.hasExistingData())
+			startRecheck();
+	}
 
-		reader = Executors.newSingleThreadExecutor();
-		writer = Executors.newSingleThreadExecutor();
+	private static ExecutorService newIdleExecutor() {
+		// A single thread that exits when it's idle, so that idle torrents
+		// don't hold any threads.
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
 	}
 
 	public void close() {
-		if (reader != null)
-			reader.shutdownNow();
+		// Blocks until the queued pieces are written. The torrent isn't
+		// locked while it waits for the writer, so that sockets that are
+		// still being closed can release their reservations.
+		synchronized (this) {
+			if (recheck != null)
+				recheck.cancel();
+
+			if (reader != null)
+				reader.shutdownNow();
+
+			if (writer != null) {
+				// Verified pieces that are queued get flushed.
+				processVerifiedPieces();
+				writer.shutdown();
+			}
+		}
+
+		if (writer != null) {
+			try {
+				writer.awaitTermination(60, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
 
+		synchronized (this) {
+			closeStorage();
+		}
+	}
+
+	private void closeStorage() {
 		if (writer != null)
-			writer.shutdownNow();
+			processSavedPieces();
+
+		if (storage != null) {
+			SortedMap<Integer, BitSet> blocks = new TreeMap<Integer, BitSet>();
+			for (Piece piece : partial.values()) {
+				BitSet available_blocks = piece.getAvailableBlocks();
+				writePartialBlocks(piece, piece.getData(), available_blocks);
+				blocks.put(piece.getIndex(), available_blocks);
+			}
+			// An incomplete check would leave the rest of the pieces out.
+			if (!isChecking())
+				writeResumeData(available, blocks);
+			storage.close();
+		}
 
-		for (BTFile f : files) {
-			f.close();
+		if (read_cache != null)
+			read_cache.removeAll(this);
+	}
+
+	private void restore(ResumeData resume) {
+		available.or(resume.getPieces());
+		unregistered.andNot(available);
+		availability.setCandidates(unregistered);
+
+		// The blocks of partial pieces were written to their regions.
+		for (Map.Entry<Integer, BitSet> e : resume.getPartialBlocks()
+				.entrySet()) {
+			int index = e.getKey();
+			if (index < 0 || index >= num_pieces || available.get(index))
+				continue;
+			Piece piece = registerPiece(index);
+			ByteBuffer data = piece.getData();
+			data.clear();
+			try {
+				storage.read(data, (long) index * piece_length);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				continue;
+			}
+			piece.restoreAvailableBlocks(e.getValue());
+			if (piece.isComplete()) {
+				partial.remove(index);
+				verifier.submit(piece);
+			}
 		}
 	}
 
+	private void startRecheck() {
+		checking.set(0, num_pieces);
+		unregistered.clear();
+		availability.setCandidates(unregistered);
+		recheck = new Recheck(storage, sha1_list, piece_length);
+		recheck.start(checking);
+	}
+
+	public boolean isChecking() {
+		return !checking.isEmpty();
+	}
+
+	public int numPiecesToCheck() {
+		return recheck == null ? 0 : recheck.numPieces();
+	}
+
+	public int numPiecesChecked() {
+		return recheck == null ? 0 : recheck.numChecked();
+	}
+
+	public void saveResumeData() {
+		// Partial pieces are copied here and written by the writer thread,
+		// after the verified pieces that are already queued for saving.
+		if (writer == null || writer.isShutdown() || isChecking())
+			return;
+
+		final Map<Piece, ByteBuffer> copies = new HashMap<Piece, ByteBuffer>();
+		final SortedMap<Integer, BitSet> blocks = new TreeMap<Integer, BitSet>();
+		for (Piece piece : partial.values()) {
+			BitSet available_blocks = piece.getAvailableBlocks();
+			if (available_blocks.isEmpty())
+				continue;
+			ByteBuffer copy = ByteBuffer.allocate(piece.getLength());
+			ByteBuffer data = piece.getData().duplicate();
+			data.clear();
+			copy.put(data);
+			copies.put(piece, copy);
+			blocks.put(piece.getIndex(), available_blocks);
+		}
+
+		// Available pieces have been saved already.
+		final BitSet pieces = (BitSet) available.clone();
+		writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				for (Map.Entry<Piece, ByteBuffer> e : copies.entrySet()) {
+					Piece piece = e.getKey();
+					writePartialBlocks(piece, e.getValue(),
+							blocks.get(piece.getIndex()));
+				}
+				writeResumeData(pieces, blocks);
+			}
+		});
+	}
+
+	private void writePartialBlocks(Piece piece, ByteBuffer data, BitSet blocks) {
+		// Unverified blocks are written to the piece's own region, which
+		// doesn't affect any verified piece.
+		long piece_offset = (long) piece.getIndex() * piece_length;
+		int start_bit = blocks.nextSetBit(0);
+		for (int i = start_bit; i >= 0; i = blocks.nextSetBit(i)) {
+			int end = blocks.nextClearBit(i);
+			int offset = piece.getBlockOffset(i);
+			int length = Math.min(piece.getBlockOffset(end), piece.getLength())
+					- offset;
+			ByteBuffer src = data.duplicate();
+			src.limit(offset + length);
+			src.position(offset);
+			try {
+				storage.write(src, piece_offset + offset);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			i = end;
+		}
+	}
+
+	private void writeResumeData(BitSet pieces, SortedMap<Integer, BitSet> blocks) {
+		try {
+			storage.flush();
+			ResumeData resume = new ResumeData(num_pieces,
+					(BitSet) pieces.clone(), blocks, files);
+			resume.save(resume_path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void setFileTransfer(boolean enabled) {
+		use_file_transfer = enabled;
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -102,10 +348,12 @@ public final class Torrent {
 	}
 
 	public long getRemainingLength() {
-		int registered = num_pieces - unregistered.cardinality();
-		long length = registered * piece_length;
+		BitSet missing = (BitSet) unregistered.clone();
+		missing.or(checking);
+		int registered = num_pieces - missing.cardinality();
+		long length = (long) registered * piece_length;
 
-		if (!unregistered.get(num_pieces - 1))
+		if (!missing.get(num_pieces - 1))
 			length -= piece_length - tail_length;
 
 		for (Piece piece : partial.values()) {
@@ -137,6 +385,26 @@ public final class Torrent {
 		return (BitSet) available.clone();
 	}
 
+	private synchronized void setAvailable(int index) {
+		// Requests are served by the reactors without the peer's lock, so
+		// the available pieces they read are changed under the torrent's.
+		available.set(index);
+		newly_available.add(index);
+	}
+
+	private synchronized boolean isAvailable(int index) {
+		return available.get(index);
+	}
+
+	public List<Integer> takeNewlyAvailable() {
+		// Pieces that became available since the previous call, so that
+		// channels don't have to compare the whole set to advertise them.
+		List<Integer> pieces = newly_available;
+		if (!pieces.isEmpty())
+			newly_available = new ArrayList<Integer>();
+		return pieces;
+	}
+
 	public Collection<Piece> getPartialPieces() {
 		return partial.values();
 	}
@@ -145,97 +413,189 @@ public final class Torrent {
 		return !unregistered.isEmpty();
 	}
 
-	public Piece registerPiece(int index) {
+	public synchronized Piece registerPiece(int index) {
 		if (index < 0 || index >= num_pieces)
 			throw new IndexOutOfBoundsException("index: " + index);
 		if (!unregistered.get(index)) {
 			return null;
 		}
 
-		int length = (index + 1) * piece_length <= total_length ? piece_length
-				: (int) (total_length % piece_length);
-
-		Piece piece = new Piece(index, length);
+		Piece piece = new Piece(index, pieceLength(index));
 		partial.put(index, piece);
-		unregistered.flip(index);
+		setUnregistered(index, false);
 		return piece;
 	}
 
+	private void setUnregistered(int index, boolean value) {
+		unregistered.set(index, value);
+		availability.setCandidate(index, value);
+	}
+
+	public PieceAvailability getAvailability() {
+		return availability;
+	}
+
+	private int pieceLength(int index) {
+		return index + 1 == num_pieces ? tail_length : piece_length;
+	}
+
 	public BitSet getUnregistered() {
 		return (BitSet) unregistered.clone();
 	}
 
-	private boolean validHash(Piece piece) {
-		ByteBuffer data = piece.getData();
-		data.rewind();
-		this.sha1.update(data);
-		ByteBuffer sha1 = ByteBuffer.wrap(sha1_list, piece.getIndex() * 20, 20);
-		return sha1.equals(ByteBuffer.wrap(this.sha1.digest()));
+	@Override
+	public synchronized ByteBuffer reserveBlock(int index, int offset,
+			int length) {
+		// The corresponding piece must be registered and in partial state.
+		Piece piece = partial.get(index);
+		return piece == null ? null : piece.reserveBlock(offset, length);
+	}
+
+	@Override
+	public synchronized void abortBlock(int index, int offset, int length) {
+		Piece piece = partial.get(index);
+		if (piece != null)
+			piece.abortBlock(offset, length);
 	}
 
-	public void saveBlock(Message block) {
+	public synchronized void saveBlock(Message block) {
 		// The corresponding piece must be registered and in partial state,
 		// otherwise the block will be discarded.
+		// The block is released in both cases.
 		final int index = block.getPieceIndex();
 		final Piece piece = partial.get(index);
-		if (piece == null)
+		if (piece == null) {
+			block.release();
 			return;
+		}
 
 		piece.write(block);
+		block.release();
 
 		if (piece.isComplete()) {
+			// The piece stays registered while it's being verified.
 			partial.remove(index);
+			verifier.submit(piece);
+		}
+	}
 
-			if (!validHash(piece)) {
-				unregistered.set(piece.getIndex());
-				System.out.println("Bad hash: " + piece.getIndex());
-				return;
-			}
-
-			writer.submit(new Runnable() {
-				@Override
-				public void run() {
-					if (!savePiece(piece)) {
-						// error
-						return;
-					}
-
-					available.set(index, true);
-				}
-			});
+	public void processVerifiedPieces() {
+		// Must be called periodically by the event loop.
+		processSavedPieces();
+		if (recheck != null)
+			processCheckedPieces();
+		while (true) {
+			Piece piece = verifier.pollFailed();
+			if (piece == null)
+				break;
+			setUnregistered(piece.getIndex(), true);
+			System.out.println("Bad hash: " + piece.getIndex());
+		}
+		while (true) {
+			Piece piece = verifier.pollPassed();
+			if (piece == null)
+				break;
+			ByteBuffer data = piece.getData().duplicate();
+			data.rewind();
+			long offset = (long) piece.getIndex() * piece_length;
+			write_cache.add(piece.getIndex(), offset, data);
+			scheduleFlush();
 		}
 	}
 
-	private boolean savePiece(Piece piece) {
-		ByteBuffer data = piece.getData();
-		data.rewind();
-		long piece_offset = piece.getIndex() * piece_length;
-		int start = Arrays.binarySearch(files, Long.valueOf(piece_offset));
-		start = Math.max(start, (-start - 1) - 1);
-		for (int i = start; i < files.length; i++) {
-			BTFile f = files[i];
-			try {
-				f.write(data, i > start ? 0 : piece_offset - f.getOffset());
-				if (!data.hasRemaining()) {
-					return true;
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+	private void processSavedPieces() {
+		while (true) {
+			Integer index = write_cache.pollSaved();
+			if (index == null)
+				break;
+			setAvailable(index);
+		}
+		while (true) {
+			// Pieces that couldn't be written are downloaded again.
+			Integer index = write_cache.pollFailed();
+			if (index == null)
 				break;
+			setUnregistered(index, true);
+		}
+	}
+
+	private void scheduleFlush() {
+		// At most one flush is queued; it writes every cached piece,
+		// including those added while it waits.
+		if (writer.isShutdown() || !flush_scheduled.compareAndSet(false, true))
+			return;
+		writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				flush_scheduled.set(false);
+				write_cache.flush();
 			}
+		});
+	}
+
+	public boolean isWriteCacheFull() {
+		return write_cache != null && write_cache.isFull();
+	}
+
+	private void processCheckedPieces() {
+		while (true) {
+			Integer index = recheck.pollPassed();
+			if (index == null)
+				break;
+			checking.clear(index);
+			setAvailable(index);
+		}
+		while (true) {
+			Integer index = recheck.pollFailed();
+			if (index == null)
+				break;
+			checking.clear(index);
+			setUnregistered(index, true);
 		}
-		return false;
 	}
 
-	public Message loadBlock(Message request) {
+	public int numPiecesVerifying() {
+		return verifier.queueDepth();
+	}
+
+	public double averageHashLatency() {
+		return verifier.averageLatency();
+	}
+
+	public double lastHashLatency() {
+		return verifier.lastLatency();
+	}
+
+	public Message loadBlock(Message request, final Runnable loaded) {
 		// The corresponding piece must be available, otherwise the
 		// request will be discarded.
+		// A block that isn't prepared on return is read by the reader
+		// thread, which then runs loaded. The block keeps the timestamp of
+		// the request.
 		final int index = request.getPieceIndex();
-		if (!available.get(index))
+		if (index < 0 || index >= num_pieces || !isAvailable(index))
 			return null;
+		final int begin = request.getBlockBegin();
+		final int length = request.getBlockLength();
+		if (begin < 0 || length < 0 || length > MAX_BLOCK_LENGTH
+				|| length > pieceLength(index) - begin)
+			return null;
+
+		if (use_file_transfer) {
+			// The payload is transferred by the socket when it's sent.
+			Message header = Message.newBlockHeader(index, begin, length);
+			header.setTimestamp(request.getTimestamp());
+			return header;
+		}
 
-		final Message block = Message.newBlock(index, request.getBlockBegin(),
-				request.getBlockLength());
+		final Message block = Message.newBlock(index, begin, length);
+		block.setTimestamp(request.getTimestamp());
+
+		ByteBuffer cached = read_cache.get(this, index);
+		if (cached != null) {
+			copyBlock(cached, block);
+			return block;
+		}
 
 		block.setPreparedStatus(false);
 
@@ -244,33 +604,72 @@ public final class Torrent {
 			public void run() {
 				readBlock(index, block);
 				block.setPreparedStatus(true);
+				if (loaded != null)
+					loaded.run();
 			}
 		});
 
 		return block;
 	}
 
-	private boolean readBlock(int index, Message block) {
+	private void copyBlock(ByteBuffer piece_data, Message block) {
 		// Buffer's remaining length is expected to match block's length.
 		ByteBuffer data = block.getData();
-		long piece_offset = index * piece_length;
-		int start = Arrays.binarySearch(files, Long.valueOf(piece_offset));
-		start = Math.max(start, (-start - 1) - 1);
-		int block_begin = block.getBlockBegin();
-		for (int i = start; i < files.length; i++) {
-			BTFile f = files[i];
+		int begin = block.getBlockBegin();
+		piece_data.limit(begin + data.remaining());
+		piece_data.position(begin);
+		data.put(piece_data);
+	}
+
+	private boolean readBlock(int index, Message block) {
+		// The whole piece is read ahead into the cache, unless a previous
+		// request has already loaded it. A piece that the cache can't hold
+		// would be dropped right away, so only the block is read.
+		ByteBuffer piece_data = read_cache.peek(this, index);
+		if (piece_data == null
+				&& pieceLength(index) <= read_cache.getCapacity()) {
+			piece_data = ByteBuffer.allocate(pieceLength(index));
 			try {
-				long ofs = index * piece_length + block_begin - f.getOffset();
-				f.read(data, ofs < 0 ? 0 : ofs);
-				if (!data.hasRemaining()) {
-					return true;
-				}
+				storage.read(piece_data, (long) index * piece_length);
 			} catch (IOException e) {
 				e.printStackTrace();
-				break;
+				return false;
 			}
+			if (piece_data.hasRemaining())
+				return false;
+			piece_data.flip();
+			read_cache.put(this, index, piece_data.duplicate());
+		}
+		if (piece_data != null) {
+			copyBlock(piece_data, block);
+			return true;
+		}
+
+		ByteBuffer data = block.getData();
+		long offset = (long) index * piece_length + block.getBlockBegin();
+		try {
+			storage.read(data, offset);
+			return !data.hasRemaining();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 		return false;
 	}
 
+	public double readCacheHitRatio() {
+		// Of the pieces of this torrent, though the cache may be shared.
+		return read_cache == null ? 0 : read_cache.hitRatio(this);
+	}
+
+	public long readCacheEvictions() {
+		return read_cache == null ? 0 : read_cache.evictions(this);
+	}
+
+	@Override
+	public long transferBlock(int index, int offset, int length,
+			WritableByteChannel target) throws IOException {
+		long position = (long) index * piece_length + offset;
+		return storage.transferTo(position, length, target);
+	}
+
 }
@@ -21,6 +21,10 @@ public final class ConnectionInfo {
 	private final boolean is_former_optimistic;
 	private final boolean am_snubbed;
 	private final boolean am_initiator;
+	private final double upload_latency;
+	private final double last_upload_latency;
+	private final double round_trip_time;
+	private final int request_queue_depth;
 
 	public ConnectionInfo(PeerChannel channel) {
 		address = channel.socket.getRemoteIP();
@@ -39,6 +43,10 @@ public final class ConnectionInfo {
 		is_former_optimistic = channel.isFormerOptimistic();
 		am_snubbed = channel.amSnubbed();
 		am_initiator = channel.amInitiator();
+		upload_latency = channel.averageUploadLatency();
+		last_upload_latency = channel.lastUploadLatency();
+		round_trip_time = channel.roundTripTime();
+		request_queue_depth = channel.requestQueueDepth();
 	}
 
 	public String getIP() {
@@ -105,4 +113,23 @@ public final class ConnectionInfo {
 		return am_initiator;
 	}
 
+	public double getUploadLatency() {
+		// Average seconds from a request until its piece is sent.
+		return upload_latency;
+	}
+
+	public double getLastUploadLatency() {
+		return last_upload_latency;
+	}
+
+	public double getRoundTripTime() {
+		// Seconds from a request until its piece arrives, or -1.
+		return round_trip_time;
+	}
+
+	public int getRequestQueueDepth() {
+		// How many requests the channel may have outstanding.
+		return request_queue_depth;
+	}
+
 }
@@ -15,6 +15,14 @@ public final class TorrentInfo {
 	private final long completion_time;
 	private final double input_rate;
 	private final double output_rate;
+	private final int pieces_verifying;
+	private final double hash_latency;
+	private final double last_hash_latency;
+	private final int pieces_to_check;
+	private final int pieces_checked;
+	private final boolean is_checking;
+	private final double read_cache_hit_ratio;
+	private final long read_cache_evictions;
 
 	public TorrentInfo(Torrent torrent, BitSet missing, long completion_time,
 			double input_rate, double output_rate) {
@@ -28,6 +36,14 @@ public final class TorrentInfo {
 		this.completion_time = completion_time;
 		this.input_rate = input_rate;
 		this.output_rate = output_rate;
+		pieces_verifying = torrent.numPiecesVerifying();
+		hash_latency = torrent.averageHashLatency();
+		last_hash_latency = torrent.lastHashLatency();
+		pieces_to_check = torrent.numPiecesToCheck();
+		pieces_checked = torrent.numPiecesChecked();
+		is_checking = torrent.isChecking();
+		read_cache_hit_ratio = torrent.readCacheHitRatio();
+		read_cache_evictions = torrent.readCacheEvictions();
 
 	}
 
@@ -67,4 +83,36 @@ public final class TorrentInfo {
 		return output_rate;
 	}
 
+	public int numPiecesVerifying() {
+		return pieces_verifying;
+	}
+
+	public double getHashLatency() {
+		// Average seconds, from piece completion to hash result.
+		return hash_latency;
+	}
+
+	public double getLastHashLatency() {
+		// Seconds, of the most recently verified piece.
+		return last_hash_latency;
+	}
+
+	public boolean isChecking() {
+		// True while existing data is verified on startup.
+		return is_checking;
+	}
+
+	public double getCheckProgress() {
+		return pieces_to_check == 0 ? 1 : (double) pieces_checked
+				/ pieces_to_check;
+	}
+
+	public double getReadCacheHitRatio() {
+		return read_cache_hit_ratio;
+	}
+
+	public long getReadCacheEvictions() {
+		return read_cache_evictions;
+	}
+
 }
@@ -0,0 +1,76 @@
+package com.ndtorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.ndtorrent.client.BTFile;
+
+public final class FileStorage extends Storage {
+	// Positional reads and writes through each file's RandomAccessFile.
+
+	protected FileStorage(BTFile[] files) {
+		super(files);
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long offset) throws IOException {
+		int total = 0;
+		for (int i = fileIndexOf(offset); i < files.length; i++) {
+			BTFile f = files[i];
+			long ofs = offset + total - f.getOffset();
+			while (dst.hasRemaining() && ofs < f.getLength()) {
+				int n = f.read(dst, ofs);
+				if (n < 0)
+					return total;
+				ofs += n;
+				total += n;
+			}
+			if (!dst.hasRemaining())
+				break;
+		}
+		return total;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long offset) throws IOException {
+		int total = 0;
+		for (int i = fileIndexOf(offset); i < files.length; i++) {
+			BTFile f = files[i];
+			long ofs = offset + total - f.getOffset();
+			while (src.hasRemaining() && ofs < f.getLength()) {
+				int n = f.write(src, ofs);
+				if (n < 0)
+					return total;
+				ofs += n;
+				total += n;
+			}
+			if (!src.hasRemaining())
+				break;
+		}
+		return total;
+	}
+
+	@Override
+	public long transferTo(long offset, long count, WritableByteChannel target)
+			throws IOException {
+		// The transfer stops at the first file that doesn't transfer all of
+		// its bytes, because the target is full.
+		long total = 0;
+		for (int i = fileIndexOf(offset); i < files.length && total < count; i++) {
+			BTFile f = files[i];
+			long ofs = offset + total - f.getOffset();
+			long n_file = Math.min(count - total, f.getLength() - ofs);
+			if (n_file <= 0)
+				continue;
+			long n = f.transferTo(ofs, n_file, target);
+			if (n < 0)
+				return total > 0 ? total : -1;
+			total += n;
+			if (n < n_file)
+				break;
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.ndtorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ndtorrent.client.BTFile;
+
+public final class MappedStorage extends Storage {
+	// Files are mapped in windows of up to WINDOW_SIZE bytes, which keeps
+	// each mapping below the 2 GiB limit of a MappedByteBuffer. The most
+	// recently used windows are kept in an LRU map, and at most MAX_WINDOWS
+	// are referenced at a time, to cap the virtual address space in use.
+	// Java can't unmap a buffer explicitly; an evicted window is unmapped
+	// when the garbage collector reclaims it.
+	// Windows are evicted by whichever thread maps a new one, i.e. a
+	// reactor that uploads, so their write-back is deferred to the flush
+	// executor instead of blocking that thread on the disk.
+
+	public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	public static final int MAX_WINDOWS = 64;
+
+	private final Map<Long, MappedByteBuffer> windows;
+
+	private final Queue<MappedByteBuffer> evicted = new ConcurrentLinkedQueue<MappedByteBuffer>();
+	private final AtomicBoolean evicted_scheduled = new AtomicBoolean();
+	private volatile Executor flush_executor;
+
+	protected MappedStorage(BTFile[] files) {
+		super(files);
+
+		windows = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Long, MappedByteBuffer> eldest) {
+				if (size() <= MAX_WINDOWS)
+					return false;
+				// The window is forced later, off the thread that maps the
+				// next one, since forcing waits for the disk.
+				evicted.add(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	@Override
+	public void setFlushExecutor(Executor executor) {
+		flush_executor = executor;
+	}
+
+	private void scheduleEvictedFlush() {
+		// At most one task is queued; it forces every window evicted
+		// until it runs. Without an executor, the windows wait for the
+		// next flush.
+		Executor executor = flush_executor;
+		if (executor == null || evicted.isEmpty()
+				|| !evicted_scheduled.compareAndSet(false, true))
+			return;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					evicted_scheduled.set(false);
+					flushEvicted();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shut down; close() flushes them.
+			evicted_scheduled.set(false);
+		}
+	}
+
+	private void flushEvicted() {
+		while (true) {
+			MappedByteBuffer window = evicted.poll();
+			if (window == null)
+				return;
+			window.force();
+		}
+	}
+
+	@Override
+	public void flush() {
+		flushEvicted();
+		synchronized (windows) {
+			for (MappedByteBuffer window : windows.values()) {
+				window.force();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (windows) {
+			flush();
+			windows.clear();
+		}
+		super.close();
+	}
+
+	private ByteBuffer window(int file_index, long file_position)
+			throws IOException {
+		// Returns a private view of the window that contains the file
+		// position, with the position set to it.
+		long number = file_position / WINDOW_SIZE;
+		Long key = Long.valueOf(((long) file_index << 32) | number);
+		MappedByteBuffer window;
+		synchronized (windows) {
+			window = windows.get(key);
+			if (window == null) {
+				BTFile f = files[file_index];
+				long start = number * WINDOW_SIZE;
+				long size = Math.min(WINDOW_SIZE, f.getLength() - start);
+				window = f.getChannel().map(MapMode.READ_WRITE, start, size);
+				windows.put(key, window);
+			}
+		}
+		scheduleEvictedFlush();
+		ByteBuffer view = window.duplicate();
+		view.position((int) (file_position % WINDOW_SIZE));
+		return view;
+	}
+
+	private ByteBuffer slice(long offset, int length) throws IOException {
+		// Returns a view of the mapping, that starts at the offset and
+		// ends at the first window or file boundary, or after length bytes.
+		int i = fileIndexOf(offset);
+		BTFile f = files[i];
+		long ofs = offset - f.getOffset();
+		if (ofs >= f.getLength())
+			return null;
+		ByteBuffer view = window(i, ofs);
+		view.limit(Math.min(view.limit(), view.position() + length));
+		return view;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long offset) throws IOException {
+		int total = 0;
+		while (dst.hasRemaining() && offset + total < total_length) {
+			ByteBuffer src = slice(offset + total, dst.remaining());
+			if (src == null)
+				break;
+			total += src.remaining();
+			dst.put(src);
+		}
+		return total;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long offset) throws IOException {
+		int total = 0;
+		while (src.hasRemaining() && offset + total < total_length) {
+			ByteBuffer dst = slice(offset + total, src.remaining());
+			if (dst == null)
+				break;
+			int n = dst.remaining();
+			ByteBuffer bb = src.duplicate();
+			bb.limit(bb.position() + n);
+			dst.put(bb);
+			src.position(bb.position());
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public long transferTo(long offset, long count, WritableByteChannel target)
+			throws IOException {
+		// Uploads are written from slices of the mapping.
+		long total = 0;
+		while (total < count && offset + total < total_length) {
+			int length = (int) Math.min(count - total, Integer.MAX_VALUE);
+			ByteBuffer src = slice(offset + total, length);
+			if (src == null)
+				break;
+			int expected = src.remaining();
+			int n = target.write(src);
+			total += n;
+			if (n < expected)
+				break;
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,179 @@
+package com.ndtorrent.client.storage;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class ReadCache {
+	// Whole pieces that have been read for uploading, evicted in least
+	// recently used order when the cached bytes exceed the capacity.
+	// The first request for a block reads the whole piece, so the
+	// following requests for the same piece, usually from many peers,
+	// are served from memory.
+	// A cache can be shared by many torrents, i.e. every torrent of a
+	// client, so that the capacity is a budget for all of them. Pieces are
+	// keyed by their owner, the torrent, and their index. Statistics are
+	// kept for the whole cache and for each owner.
+
+	public static final long DEFAULT_CAPACITY = 32 * 1024 * 1024;
+
+	private long capacity;
+	private final LinkedHashMap<Key, ByteBuffer> pieces = new LinkedHashMap<Key, ByteBuffer>(
+			16, 0.75f, true);
+	private long cached_bytes;
+
+	private final Stats total = new Stats();
+	private final Map<Object, Stats> owners = new IdentityHashMap<Object, Stats>();
+
+	private static final class Stats {
+		long hits;
+		long misses;
+		long evictions;
+
+		double hitRatio() {
+			long n = hits + misses;
+			return n == 0 ? 0 : (double) hits / n;
+		}
+	}
+
+	private static final class Key {
+		final Object owner;
+		final int index;
+
+		Key(Object owner, int index) {
+			this.owner = owner;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key))
+				return false;
+			Key key = (Key) other;
+			return owner == key.owner && index == key.index;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(owner) + index;
+		}
+	}
+
+	public ReadCache(long capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity: " + capacity);
+		this.capacity = capacity;
+	}
+
+	public synchronized ByteBuffer get(Object owner, int index) {
+		// Returns a private view of the piece, or null. Counts as a hit or
+		// a miss.
+		ByteBuffer data = pieces.get(new Key(owner, index));
+		Stats stats = statsOf(owner);
+		if (data == null) {
+			total.misses++;
+			stats.misses++;
+			return null;
+		}
+		total.hits++;
+		stats.hits++;
+		return data.duplicate();
+	}
+
+	public synchronized ByteBuffer peek(Object owner, int index) {
+		// Same as get, without affecting the statistics.
+		ByteBuffer data = pieces.get(new Key(owner, index));
+		return data == null ? null : data.duplicate();
+	}
+
+	public synchronized void put(Object owner, int index, ByteBuffer data) {
+		// The buffer, from position 0 to its limit, must not be modified
+		// afterwards.
+		int length = data.limit();
+		if (length > capacity)
+			return;
+		Key key = new Key(owner, index);
+		ByteBuffer old = pieces.remove(key);
+		if (old != null)
+			cached_bytes -= old.limit();
+		evict(capacity - length);
+		pieces.put(key, data);
+		cached_bytes += length;
+	}
+
+	public synchronized void removeAll(Object owner) {
+		// Must be called when the owner is closed; its statistics are
+		// removed too.
+		owners.remove(owner);
+		Iterator<Map.Entry<Key, ByteBuffer>> iter = pieces.entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, ByteBuffer> e = iter.next();
+			if (e.getKey().owner == owner) {
+				cached_bytes -= e.getValue().limit();
+				iter.remove();
+			}
+		}
+	}
+
+	private void evict(long max_bytes) {
+		// Removes the least recently used pieces, until at most max_bytes
+		// are cached.
+		Iterator<Map.Entry<Key, ByteBuffer>> iter = pieces.entrySet()
+				.iterator();
+		while (cached_bytes > max_bytes && iter.hasNext()) {
+			Map.Entry<Key, ByteBuffer> e = iter.next();
+			cached_bytes -= e.getValue().limit();
+			iter.remove();
+			total.evictions++;
+			statsOf(e.getKey().owner).evictions++;
+		}
+	}
+
+	private Stats statsOf(Object owner) {
+		Stats stats = owners.get(owner);
+		if (stats == null) {
+			stats = new Stats();
+			owners.put(owner, stats);
+		}
+		return stats;
+	}
+
+	public synchronized long cachedBytes() {
+		return cached_bytes;
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized void setCapacity(long capacity) {
+		// Pieces beyond a smaller capacity are evicted.
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity: " + capacity);
+		this.capacity = capacity;
+		evict(capacity);
+	}
+
+	public synchronized double hitRatio() {
+		return total.hitRatio();
+	}
+
+	public synchronized long evictions() {
+		return total.evictions;
+	}
+
+	public synchronized double hitRatio(Object owner) {
+		// Of the pieces of the owner only.
+		Stats stats = owners.get(owner);
+		return stats == null ? 0 : stats.hitRatio();
+	}
+
+	public synchronized long evictions(Object owner) {
+		Stats stats = owners.get(owner);
+		return stats == null ? 0 : stats.evictions;
+	}
+
+}
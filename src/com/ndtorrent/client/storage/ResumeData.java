@@ -0,0 +1,192 @@
+package com.ndtorrent.client.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.ndtorrent.client.BTFile;
+import com.ndtorrent.client.Bdecoder;
+import com.ndtorrent.client.Bencoder;
+
+public final class ResumeData {
+	// Persists the verified pieces and the blocks of partial pieces, along
+	// with the length and modification time of every file. The data is
+	// stored as a bencoded dictionary:
+	// { "version", "num pieces", "pieces", "files": [{"length", "mtime"}],
+	// "partial": [{"index", "blocks"}] }
+	// Bit sets are stored as binary strings of BitSet.toByteArray().
+
+	static final long VERSION = 1;
+
+	private int num_pieces;
+	private BitSet pieces;
+	private long[] lengths;
+	private long[] mtimes;
+	private SortedMap<Integer, BitSet> partial;
+
+	private ResumeData() {
+	}
+
+	public ResumeData(int num_pieces, BitSet pieces,
+			SortedMap<Integer, BitSet> partial, BTFile[] files) {
+		// File times are taken at construction, so the data written to the
+		// files must have been flushed.
+		this.num_pieces = num_pieces;
+		this.pieces = pieces;
+		this.partial = partial;
+		lengths = new long[files.length];
+		mtimes = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lengths[i] = files[i].getLength();
+			mtimes[i] = files[i].lastModified();
+		}
+	}
+
+	public static String fileName(String info_hash) {
+		// The hex representation of the binary info hash.
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < info_hash.length(); i++) {
+			builder.append(String.format("%02x", info_hash.charAt(i) & 0xFF));
+		}
+		return builder.append(".resume").toString();
+	}
+
+	public BitSet getPieces() {
+		return pieces;
+	}
+
+	public SortedMap<Integer, BitSet> getPartialBlocks() {
+		return partial;
+	}
+
+	public boolean isValidFor(int num_pieces, BTFile[] files) {
+		// Stale data, i.e. files modified by someone else, is not valid.
+		if (this.num_pieces != num_pieces || lengths.length != files.length)
+			return false;
+		if (pieces.length() > num_pieces)
+			return false;
+		for (int i = 0; i < files.length; i++) {
+			if (lengths[i] != files[i].getLength())
+				return false;
+			if (mtimes[i] != files[i].lastModified())
+				return false;
+		}
+		return true;
+	}
+
+	public void save(String filename) throws IOException {
+		// The file is replaced only after the new data is fully written.
+		SortedMap<String, Object> dict = new TreeMap<String, Object>();
+		dict.put("version", VERSION);
+		dict.put("num pieces", Long.valueOf(num_pieces));
+		dict.put("pieces", toBinaryString(pieces));
+
+		List<Object> files = new ArrayList<Object>();
+		for (int i = 0; i < lengths.length; i++) {
+			SortedMap<String, Object> f = new TreeMap<String, Object>();
+			f.put("length", lengths[i]);
+			f.put("mtime", mtimes[i]);
+			files.add(f);
+		}
+		dict.put("files", files);
+
+		List<Object> entries = new ArrayList<Object>();
+		for (Map.Entry<Integer, BitSet> e : partial.entrySet()) {
+			SortedMap<String, Object> p = new TreeMap<String, Object>();
+			p.put("index", Long.valueOf(e.getKey()));
+			p.put("blocks", toBinaryString(e.getValue()));
+			entries.add(p);
+		}
+		dict.put("partial", entries);
+
+		File target = new File(filename);
+		File temp = new File(filename + ".tmp");
+		if (target.getParentFile() != null)
+			target.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			BufferedOutputStream out = new BufferedOutputStream(fos);
+			Bencoder.encode(dict, out);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		target.delete();
+		if (!temp.renameTo(target))
+			throw new IOException("cannot rename " + temp);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static ResumeData load(String filename) {
+		// Returns null if the file doesn't exist or can't be decoded.
+		File file = new File(filename);
+		if (!file.isFile())
+			return null;
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				int n = 0;
+				while (n < bytes.length) {
+					int r = fis.read(bytes, n, bytes.length - n);
+					if (r < 0)
+						return null;
+					n += r;
+				}
+			} finally {
+				fis.close();
+			}
+
+			Object o = Bdecoder.decode(bytes);
+			if (!(o instanceof Map<?, ?>))
+				return null;
+			Map<String, Object> dict = (Map<String, Object>) o;
+			if (!Long.valueOf(VERSION).equals(dict.get("version")))
+				return null;
+
+			ResumeData data = new ResumeData();
+			data.num_pieces = ((Long) dict.get("num pieces")).intValue();
+			data.pieces = fromBinaryString((String) dict.get("pieces"));
+
+			List<Object> files = (List<Object>) dict.get("files");
+			data.lengths = new long[files.size()];
+			data.mtimes = new long[files.size()];
+			for (int i = 0; i < files.size(); i++) {
+				Map<String, Object> f = (Map<String, Object>) files.get(i);
+				data.lengths[i] = (Long) f.get("length");
+				data.mtimes[i] = (Long) f.get("mtime");
+			}
+
+			data.partial = new TreeMap<Integer, BitSet>();
+			for (Object e : (List<Object>) dict.get("partial")) {
+				Map<String, Object> p = (Map<String, Object>) e;
+				int index = ((Long) p.get("index")).intValue();
+				data.partial.put(index,
+						fromBinaryString((String) p.get("blocks")));
+			}
+			return data;
+		} catch (Exception e) {
+			// Missing keys, wrong types or I/O errors.
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static String toBinaryString(BitSet set) throws IOException {
+		return new String(set.toByteArray(), "ISO-8859-1");
+	}
+
+	private static BitSet fromBinaryString(String s) throws IOException {
+		return BitSet.valueOf(s.getBytes("ISO-8859-1"));
+	}
+
+}
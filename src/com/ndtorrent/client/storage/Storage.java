@@ -0,0 +1,106 @@
+package com.ndtorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import com.ndtorrent.client.BTFile;
+
+public abstract class Storage {
+	// Offsets are relative to the beginning of the torrent, i.e. the
+	// concatenation of all files. Implementations must allow concurrent
+	// calls from the reader, the writer and the network threads.
+
+	protected final BTFile[] files;
+	protected final long total_length;
+
+	// Consecutive calls usually access the same file.
+	private volatile int last_file;
+
+	protected Storage(BTFile[] files) {
+		this.files = files;
+		long length = 0;
+		for (BTFile f : files) {
+			length += f.getLength();
+		}
+		total_length = length;
+	}
+
+	public static final Storage create(BTFile[] files, boolean memory_mapped) {
+		if (memory_mapped)
+			return new MappedStorage(files);
+		else
+			return new FileStorage(files);
+	}
+
+	public void open(String parent_path) throws IOException {
+		for (BTFile f : files) {
+			f.createFileAndPath(parent_path);
+		}
+	}
+
+	public void close() {
+		for (BTFile f : files) {
+			f.close();
+		}
+	}
+
+	public boolean hasExistingData() {
+		// True if any file had data before open().
+		for (BTFile f : files) {
+			if (f.existed())
+				return true;
+		}
+		return false;
+	}
+
+	public void setFlushExecutor(Executor executor) {
+		// Write-back that the storage defers, rather than blocking the
+		// calling thread, runs on the executor, i.e. the writer thread.
+	}
+
+	public void flush() throws IOException {
+		// Makes written data visible in the files' modification times.
+	}
+
+	public BTFile[] getFiles() {
+		return files;
+	}
+
+	public long getTotalLength() {
+		return total_length;
+	}
+
+	// Reads dst.remaining() bytes, or until the end of the torrent.
+	// Returns the number of bytes read.
+	public abstract int read(ByteBuffer dst, long offset) throws IOException;
+
+	// Writes src.remaining() bytes, or until the end of the torrent.
+	// Returns the number of bytes written.
+	public abstract int write(ByteBuffer src, long offset) throws IOException;
+
+	// Transfers up to count bytes to the target and returns the number of
+	// bytes transferred. It stops early if the target is full.
+	public abstract long transferTo(long offset, long count,
+			WritableByteChannel target) throws IOException;
+
+	protected final int fileIndexOf(long offset) {
+		// Returns the index of the file that contains the offset.
+		// Zero length files are skipped by the binary search, since they
+		// share the offset with the next file.
+		int i = last_file;
+		BTFile f = files[i];
+		if (offset >= f.getOffset() && offset < f.getOffset() + f.getLength())
+			return i;
+
+		i = Arrays.binarySearch(files, Long.valueOf(offset));
+		i = Math.max(i, (-i - 1) - 1);
+		while (i + 1 < files.length && files[i].getLength() == 0)
+			i++;
+		last_file = i;
+		return i;
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.ndtorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public final class WriteCache {
+	// Verified pieces wait here until the writer thread flushes them.
+	// A flush writes every cached piece; pieces that are adjacent in the
+	// torrent are copied to a staging buffer and written together, so a
+	// slow disk receives a few large sequential writes instead of many
+	// small ones. The cache doesn't refuse pieces; isFull() tells the
+	// event loop to stop reading from the network until a flush frees
+	// some of the budget.
+
+	public static final long DEFAULT_BUDGET = 64 * 1024 * 1024;
+	static final int MAX_RUN_LENGTH = 8 * 1024 * 1024;
+
+	private final Storage storage;
+	private final long budget;
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private long cached_bytes;
+
+	private final Queue<Integer> saved = new ConcurrentLinkedQueue<Integer>();
+	private final Queue<Integer> failed = new ConcurrentLinkedQueue<Integer>();
+
+	private ByteBuffer staging; // used by the writer thread only
+
+	private static final class Entry {
+		final int index;
+		final long offset;
+		final ByteBuffer data;
+
+		Entry(int index, long offset, ByteBuffer data) {
+			this.index = index;
+			this.offset = offset;
+			this.data = data;
+		}
+	}
+
+	public WriteCache(Storage storage, long budget) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("budget: " + budget);
+		this.storage = storage;
+		this.budget = budget;
+	}
+
+	public synchronized void add(int index, long offset, ByteBuffer data) {
+		// The remaining bytes of data are written at the given offset.
+		// The buffer must not be modified until the piece is saved.
+		entries.add(new Entry(index, offset, data));
+		cached_bytes += data.remaining();
+	}
+
+	public synchronized boolean isFull() {
+		return cached_bytes >= budget;
+	}
+
+	public synchronized long cachedBytes() {
+		return cached_bytes;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public Integer pollSaved() {
+		// Returns the index of a saved piece, or null.
+		return saved.poll();
+	}
+
+	public Integer pollFailed() {
+		return failed.poll();
+	}
+
+	public void flush() {
+		// Called by the writer thread.
+		// The batch is the head of the entries; pieces are only added
+		// at the end meanwhile.
+		List<Entry> batch;
+		synchronized (this) {
+			if (entries.isEmpty())
+				return;
+			batch = new ArrayList<Entry>(entries);
+		}
+
+		Collections.sort(batch, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				return Long.signum(e1.offset - e2.offset);
+			}
+		});
+
+		int start = 0;
+		while (start < batch.size()) {
+			// Find the run of adjacent pieces that starts here.
+			Entry first = batch.get(start);
+			long run_end = first.offset + first.data.remaining();
+			int end = start + 1;
+			while (end < batch.size()) {
+				Entry next = batch.get(end);
+				long length = next.data.remaining();
+				if (next.offset != run_end
+						|| run_end + length - first.offset > MAX_RUN_LENGTH)
+					break;
+				run_end += length;
+				end++;
+			}
+
+			boolean ok = write(batch.subList(start, end), first.offset,
+					(int) (run_end - first.offset));
+			for (Entry e : batch.subList(start, end)) {
+				if (ok)
+					saved.add(e.index);
+				else
+					failed.add(e.index);
+			}
+
+			// The budget is freed run by run, and the entries are removed
+			// at once when the batch is written.
+			synchronized (this) {
+				for (Entry e : batch.subList(start, end)) {
+					cached_bytes -= e.data.remaining();
+				}
+			}
+			start = end;
+		}
+
+		synchronized (this) {
+			entries.subList(0, batch.size()).clear();
+		}
+	}
+
+	private boolean write(List<Entry> run, long offset, int length) {
+		ByteBuffer src;
+		if (run.size() == 1) {
+			src = run.get(0).data.duplicate();
+		} else {
+			if (staging == null || staging.capacity() < length)
+				staging = ByteBuffer.allocateDirect(Math.max(length,
+						MAX_RUN_LENGTH));
+			staging.clear();
+			for (Entry e : run) {
+				staging.put(e.data.duplicate());
+			}
+			staging.flip();
+			src = staging;
+		}
+		try {
+			storage.write(src, offset);
+			return !src.hasRemaining();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+}
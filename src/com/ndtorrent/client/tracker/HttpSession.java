@@ -1,6 +1,7 @@
 package com.ndtorrent.client.tracker;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
@@ -12,9 +13,9 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Scanner;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
 
 import com.ndtorrent.client.Bdecoder;
 import com.ndtorrent.client.ClientInfo;
@@ -23,7 +24,7 @@ public final class HttpSession extends Session implements Runnable {
 
 	// Implements the HTTP tracker protocol
 
-	private Thread thread;
+	private volatile Future<?> updating;
 
 	private String tracker;
 	private String tracker_id;
@@ -89,8 +90,7 @@ public final class HttpSession extends Session implements Runnable {
 		}
 
 		// Run
-		thread = new Thread(this);
-		thread.start();
+		updating = submit(this);
 
 	}
 
@@ -110,7 +110,7 @@ public final class HttpSession extends Session implements Runnable {
 
 	@Override
 	public boolean isUpdating() {
-		return thread != null && thread.isAlive();
+		return updating != null && !updating.isDone();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -122,12 +122,21 @@ public final class HttpSession extends Session implements Runnable {
 		try {
 			connection = new URL(tracker + request).openConnection();
 			connection.setUseCaches(false);
-
-			String ben_response;
-			ben_response = new Scanner(connection.getInputStream())
-					.useDelimiter("^").next();
-			response = (SortedMap<String, Object>) Bdecoder
-					.decode(ben_response);
+			// Without timeouts, a tracker that doesn't respond would hold
+			// an announce thread indefinitely.
+			connection.setConnectTimeout(ANNOUNCE_TIMEOUT_SECONDS * 1000);
+			connection.setReadTimeout(ANNOUNCE_TIMEOUT_SECONDS * 1000);
+
+			// The response is decoded as it's received.
+			Object ben_response;
+			InputStream in = connection.getInputStream();
+			try {
+				ben_response = Bdecoder.decode(in);
+			} finally {
+				in.close();
+			}
+			if (ben_response instanceof SortedMap<?, ?>)
+				response = (SortedMap<String, Object>) ben_response;
 			if (response.containsKey("tracker id"))
 				tracker_id = (String) response.get("tracker id");
 
@@ -5,6 +5,13 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ndtorrent.client.ClientInfo;
 
@@ -18,6 +25,36 @@ public abstract class Session {
 	// Session and its subclasses are not thread safe.
 	// Do not call any query method while Session.isUpdating() returns true.
 
+	// Updates of every session run on a shared pool, instead of a new
+	// thread per update. Announces block on the network, so threads are
+	// added as announces are queued, up to the bound, and exit when idle.
+	// Every announce has a deadline, so dead trackers can't hold the
+	// threads for long and starve the announces of other trackers.
+	static final int MAX_ANNOUNCE_THREADS = Math.max(16, 4 * Runtime
+			.getRuntime().availableProcessors());
+	static final int ANNOUNCE_TIMEOUT_SECONDS = 60;
+
+	private static final ExecutorService announcers = newAnnouncers();
+
+	private static ExecutorService newAnnouncers() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				MAX_ANNOUNCE_THREADS, MAX_ANNOUNCE_THREADS, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ANNOUNCE-THREAD-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	protected ClientInfo client_info;
 	protected String info_hash;
 
@@ -37,6 +74,10 @@ public abstract class Session {
 		return new NullSession(url, client_info, info_hash);
 	}
 
+	protected static final Future<?> submit(Runnable update) {
+		return announcers.submit(update);
+	}
+
 	public abstract String getUrl();
 
 	public abstract void update(Event event, long uploaded, long downloaded,
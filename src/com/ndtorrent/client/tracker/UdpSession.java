@@ -12,6 +12,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Random;
+import java.util.concurrent.Future;
 
 import com.ndtorrent.client.ClientInfo;
 
@@ -32,7 +33,7 @@ public final class UdpSession extends Session implements Runnable {
 	static final int MAX_TIMEOUT = 15 * 8; // use the right factor to adjust it
 	static final int DEFAULT_PORT = 80;
 
-	private Thread thread;
+	private volatile Future<?> updating;
 
 	private Random random = new Random();
 
@@ -50,6 +51,7 @@ public final class UdpSession extends Session implements Runnable {
 	private int transaction_id = -1;
 	private long connection_id = -1;
 	private long expire_time = 0;
+	private long deadline; // of the update in progress
 
 	private URI tracker;
 
@@ -106,8 +108,7 @@ public final class UdpSession extends Session implements Runnable {
 			request_body.putShort((short) (client_info.getPort() & 0xFFFF));
 
 			// Run
-			thread = new Thread(this);
-			thread.start();
+			updating = submit(this);
 
 		} catch (UnsupportedEncodingException e) {
 			e.printStackTrace();
@@ -121,12 +122,13 @@ public final class UdpSession extends Session implements Runnable {
 
 	@Override
 	public boolean isUpdating() {
-		return thread != null && thread.isAlive();
+		return updating != null && !updating.isDone();
 	}
 
 	@Override
 	public void run() {
 		timeStep = 1;
+		deadline = System.nanoTime() + ANNOUNCE_TIMEOUT_SECONDS * 1000000000L;
 		try {
 			socket = new DatagramSocket();
 			performAction(ACTION_ANNOUNCE);
@@ -193,12 +195,19 @@ public final class UdpSession extends Session implements Runnable {
 
 	private void performAction(int action) throws IOException {
 		do {
-			if (connectionExpired() && action != ACTION_CONNECT)
+			if (connectionExpired() && action != ACTION_CONNECT) {
 				performAction(ACTION_CONNECT);
+				if (is_timeout)
+					return;
+			}
 
+			// Retries back off as the protocol suggests, but the whole
+			// update must complete before its deadline.
 			int timeout = 15 * timeStep;
 			timeStep *= 2;
-			if (timeout > MAX_TIMEOUT) {
+			long now = System.nanoTime();
+			long attempt_end = Math.min(now + timeout * 1000000000L, deadline);
+			if (timeout > MAX_TIMEOUT || attempt_end <= now) {
 				is_timeout = true;
 				return;
 			}
@@ -228,8 +237,11 @@ public final class UdpSession extends Session implements Runnable {
 				byte[] resBlock = response.array();
 				DatagramPacket in = new DatagramPacket(resBlock,
 						resBlock.length);
-				socket.setSoTimeout(timeout * 1000);
 				do {
+					long millis = (attempt_end - System.nanoTime()) / 1000000;
+					if (millis <= 0)
+						break;
+					socket.setSoTimeout((int) millis);
 					socket.receive(in);
 					response.limit(in.getLength());
 					// We continue to loop on invalid responses assuming the
@@ -72,6 +72,9 @@ public class TorrentsModel extends AbstractTableModel {
 	}
 
 	private String getProgressValue(TorrentInfo info) {
+		if (info.isChecking())
+			return String.format("Checking %.1f%%",
+					100.0 * info.getCheckProgress());
 		long total = info.getTotalLength();
 		long remaining = info.getRemainingLength();
 		if (remaining == 0)